@@ -0,0 +1,223 @@
+package wbs.particleeffects.bench;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginLoader;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import wbs.particleeffects.WbsParticleEffects;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Lightweight stand-ins for the Bukkit types the plugin touches, so its classes can run
+ * without a server. Only the methods the benchmarks reach do anything; the rest return defaults.
+ */
+public final class StandIns {
+
+    private static final List<Player> onlinePlayers = new ArrayList<>();
+    private static final Map<String, World> worlds = new HashMap<>();
+    private static boolean serverInstalled = false;
+
+    private StandIns() {}
+
+    /**
+     * Install a stand-in server for {@link Bukkit}'s static methods. Safe to call more than once.
+     */
+    public static synchronized void installServer() {
+        if (serverInstalled) {
+            return;
+        }
+        serverInstalled = true;
+
+        Logger logger = Logger.getLogger("StandInServer");
+        Server server = proxy(Server.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getOnlinePlayers":
+                    return Collections.unmodifiableList(onlinePlayers);
+                case "getWorld":
+                    return args[0] instanceof String ? worlds.get(args[0]) : null;
+                case "getLogger":
+                    return logger;
+                case "getName":
+                case "getVersion":
+                case "getBukkitVersion":
+                    return "StandIn";
+                default:
+                    return objectMethod(proxy, method, args);
+            }
+        });
+
+        Bukkit.setServer(server);
+    }
+
+    /**
+     * Replace the players the stand-in server reports as online.
+     */
+    public static void setOnlinePlayers(Collection<? extends Player> players) {
+        onlinePlayers.clear();
+        onlinePlayers.addAll(players);
+    }
+
+    /**
+     * A world with every chunk loaded, which {@link Bukkit#getWorld(String)} finds by name.
+     */
+    public static World world(String name) {
+        World world = proxy(World.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getName":
+                    return name;
+                case "isChunkLoaded":
+                    return true;
+                default:
+                    return objectMethod(proxy, method, args);
+            }
+        });
+
+        worlds.put(name, world);
+        return world;
+    }
+
+    /**
+     * A plugin with its services created, but nothing started, loaded or registered with the server.
+     * Load effects with {@link wbs.particleeffects.ParticleEffectSettings#reloadChanged()} and drive
+     * them with {@link wbs.particleeffects.scheduler.EffectScheduler#tick()}.
+     * <p>
+     * JavaPlugin refuses to be constructed outside a plugin class loader, and its constructor for
+     * tests can't be reached through WbsPlugin, so the plugin is allocated without running any
+     * constructors and initialised the way that constructor would.
+     * @param dataFolder The folder to read config.yml and the effects folder from
+     */
+    public static WbsParticleEffects plugin(File dataFolder) {
+        installServer();
+
+        try {
+            WbsParticleEffects plugin = allocate(WbsParticleEffects.class);
+
+            Method init = JavaPlugin.class.getDeclaredMethod("init",
+                    PluginLoader.class, Server.class, PluginDescriptionFile.class, File.class, File.class, ClassLoader.class);
+            init.setAccessible(true);
+            init.invoke(plugin,
+                    new JavaPluginLoader(Bukkit.getServer()),
+                    Bukkit.getServer(),
+                    new PluginDescriptionFile("WbsParticleEffects", "bench", WbsParticleEffects.class.getName()),
+                    dataFolder,
+                    new File(dataFolder, "WbsParticleEffects.jar"),
+                    StandIns.class.getClassLoader());
+
+            plugin.logger = plugin.getLogger();
+            plugin.createServices();
+            return plugin;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create a stand-in plugin", e);
+        }
+    }
+
+    /**
+     * Delete a folder and everything in it, such as a plugin's data folder once a benchmark is done.
+     */
+    public static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * A player standing still at a location, counting the particles sent to them.
+     */
+    public static StandInPlayer player(Location location) {
+        return new StandInPlayer(location);
+    }
+
+    public static final class StandInPlayer {
+        private final Location location;
+        private final Player player;
+        private long particlesReceived = 0;
+
+        private StandInPlayer(Location location) {
+            this.location = location.clone();
+
+            player = proxy(Player.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getLocation":
+                        if (args != null && args.length == 1 && args[0] != null) {
+                            Location into = (Location) args[0];
+                            into.setWorld(this.location.getWorld());
+                            into.setX(this.location.getX());
+                            into.setY(this.location.getY());
+                            into.setZ(this.location.getZ());
+                            return into;
+                        }
+                        return this.location.clone();
+                    case "getWorld":
+                        return this.location.getWorld();
+                    case "isOnline":
+                    case "isValid":
+                        return true;
+                    case "spawnParticle":
+                        particlesReceived += (Integer) args[args[1] instanceof Location ? 2 : 4];
+                        return null;
+                    default:
+                        return objectMethod(proxy, method, args);
+                }
+            });
+        }
+
+        public Player getPlayer() {
+            return player;
+        }
+
+        public long getParticlesReceived() {
+            return particlesReceived;
+        }
+    }
+
+    private static <T> T allocate(Class<T> type) throws ReflectiveOperationException {
+        Field unsafeField = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+        unsafeField.setAccessible(true);
+        Object unsafe = unsafeField.get(null);
+
+        return type.cast(unsafe.getClass().getMethod("allocateInstance", Class.class).invoke(unsafe, type));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "StandIn@" + Integer.toHexString(System.identityHashCode(proxy));
+        }
+
+        Class<?> returnType = method.getReturnType();
+        if (returnType == boolean.class) return false;
+        if (returnType == int.class) return 0;
+        if (returnType == long.class) return 0L;
+        if (returnType == double.class) return 0.0;
+        if (returnType == float.class) return 0f;
+        if (returnType == short.class) return (short) 0;
+        if (returnType == byte.class) return (byte) 0;
+        if (returnType == char.class) return (char) 0;
+        return null;
+    }
+}
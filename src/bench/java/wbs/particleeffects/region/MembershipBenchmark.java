@@ -0,0 +1,104 @@
+package wbs.particleeffects.region;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.*;
+import wbs.particleeffects.WbsParticleEffects;
+import wbs.particleeffects.bench.StandIns;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduler tick for many ambient regions spread over a world, each running
+ * {@link wbs.particleeffects.instance.AmbientEffectGroupInstance#runEffect} for a one-particle
+ * effect, so the time is mostly spent finding which players are inside each region.
+ * <p>
+ * The regions are loaded from a group file by the real plugin, running on stand-ins.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MembershipBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int players;
+
+    @Param({"100"})
+    public int regions;
+
+    private Path dataFolder;
+    private WbsParticleEffects plugin;
+
+    @Setup
+    public void setup() throws IOException {
+        World world = StandIns.world("world");
+        Random random = new Random(588);
+
+        dataFolder = Files.createTempDirectory("wbspe-bench");
+        Path effects = Files.createDirectories(dataFolder.resolve("effects"));
+        Files.write(effects.resolve("Regions.yml"), generateGroup(random).getBytes(StandardCharsets.UTF_8));
+
+        plugin = StandIns.plugin(dataFolder.toFile());
+
+        List<Player> online = new ArrayList<>();
+        for (int i = 0; i < players; i++) {
+            online.add(StandIns.player(new Location(world, random.nextInt(2048), 64, random.nextInt(2048))).getPlayer());
+        }
+        StandIns.setOnlinePlayers(online);
+
+        plugin.settings.reloadChanged();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        plugin.settings.shutdown();
+        StandIns.deleteRecursively(dataFolder);
+    }
+
+    @Benchmark
+    public void tick() {
+        plugin.scheduler.tick();
+    }
+
+    private String generateGroup(Random random) {
+        StringBuilder yaml = new StringBuilder("instances:\n");
+        for (int i = 0; i < regions; i++) {
+            int x = random.nextInt(2048);
+            int z = random.nextInt(2048);
+            int size = 8 + random.nextInt(40);
+
+            yaml.append("  Region").append(i).append(":\n")
+                    .append("    enabled: true\n")
+                    .append("    ambient:\n")
+                    .append("      world: 'world'\n")
+                    .append("      pos1:\n")
+                    .append("        x: ").append(x).append('\n')
+                    .append("        y: 50\n")
+                    .append("        z: ").append(z).append('\n')
+                    .append("      pos2:\n")
+                    .append("        x: ").append(x + size).append('\n')
+                    .append("        y: 90\n")
+                    .append("        z: ").append(z + size).append('\n');
+        }
+
+        yaml.append("effects:\n")
+                .append("  '1':\n")
+                .append("    type: 'ring'\n")
+                .append("    particle: 'end_rod'\n")
+                .append("    amount: 1\n")
+                .append("    radius: 0.5\n")
+                .append("    interval: 1\n");
+        return yaml.toString();
+    }
+}
@@ -0,0 +1,75 @@
+package wbs.particleeffects.region;
+
+import org.bukkit.Location;
+import org.bukkit.util.Vector;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import wbs.particleeffects.region.ZoneIndex.Zone;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the zones near each player in {@link wbs.particleeffects.instance.ZoneEffectGroupInstance},
+ * for thousands of small zones spread over a town.
+ * <p>
+ * {@link #scanAll()} checks every zone against every player, as one ambient instance per zone would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZoneBenchmark {
+
+    private static final double VIEW_DISTANCE = 32;
+
+    @Param({"10", "100"})
+    public int players;
+
+    @Param({"1000", "10000"})
+    public int zones;
+
+    private final ZoneIndex index = new ZoneIndex();
+    private final List<Location> playerLocations = new ArrayList<>();
+    private final List<Zone> found = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        Random random = new Random(588);
+
+        for (int i = 0; i < players; i++) {
+            playerLocations.add(new Location(null, random.nextInt(2048), 64, random.nextInt(2048)));
+        }
+
+        for (int i = 0; i < zones; i++) {
+            double x = random.nextInt(2048);
+            double y = 60 + random.nextInt(20);
+            double z = random.nextInt(2048);
+            index.add(new Zone(new Vector(x, y, z), new Vector(x + 1, y + 1, z + 1)));
+        }
+    }
+
+    @Benchmark
+    public void indexed(Blackhole blackhole) {
+        found.clear();
+        index.startPass();
+        for (Location loc : playerLocations) {
+            index.collectNear(loc.getX(), loc.getY(), loc.getZ(), VIEW_DISTANCE, found);
+        }
+        blackhole.consume(found.size());
+    }
+
+    @Benchmark
+    public void scanAll(Blackhole blackhole) {
+        double distanceSquared = VIEW_DISTANCE * VIEW_DISTANCE;
+        for (Zone zone : index.getZones()) {
+            for (Location loc : playerLocations) {
+                blackhole.consume(zone.distanceSquared(loc.getX(), loc.getY(), loc.getZ()) <= distanceSquared);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package wbs.particleeffects.render;
+
+import org.bukkit.Location;
+import org.bukkit.Particle;
+import org.bukkit.World;
+import org.openjdk.jmh.annotations.*;
+import wbs.particleeffects.bench.StandIns;
+import wbs.particleeffects.region.PlayerChunkIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One tick of sending: every static instance queues its frame for nearby players,
+ * then the dispatcher deduplicates and sends each player's batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int players;
+
+    @Param({"200"})
+    public int instances;
+
+    private PlayerChunkIndex playerIndex;
+    private ParticleDispatcher dispatcher;
+    private ParticleFrame frame;
+    private final List<Location> origins = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        StandIns.installServer();
+        World world = StandIns.world("world");
+        Random random = new Random(588);
+
+        List<org.bukkit.entity.Player> online = new ArrayList<>();
+        for (int i = 0; i < players; i++) {
+            online.add(StandIns.player(new Location(world, random.nextInt(512), 64, random.nextInt(512))).getPlayer());
+        }
+        StandIns.setOnlinePlayers(online);
+
+        for (int i = 0; i < instances; i++) {
+            origins.add(new Location(world, random.nextInt(512), 64, random.nextInt(512)));
+        }
+
+        ParticleFrame.Builder builder = new ParticleFrame.Builder();
+        for (int i = 0; i < 32; i++) {
+            builder.add(Math.cos(i) * 2, i / 16.0, Math.sin(i) * 2, 1, 0, 0, 0, 0);
+        }
+        frame = builder.build();
+
+        playerIndex = new PlayerChunkIndex();
+        dispatcher = new ParticleDispatcher(playerIndex);
+        dispatcher.setMaxParticlesPerPlayer(2000);
+    }
+
+    @Benchmark
+    public void tick() {
+        playerIndex.invalidate();
+
+        for (Location origin : origins) {
+            dispatcher.queueNearby(frame, Particle.END_ROD, null, origin, false);
+        }
+
+        dispatcher.flush();
+    }
+}
@@ -0,0 +1,121 @@
+package wbs.particleeffects.render;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.openjdk.jmh.annotations.*;
+import wbs.particleeffects.PersistentEffect;
+import wbs.particleeffects.WbsParticleEffects;
+import wbs.particleeffects.bench.StandIns;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One run of {@link PersistentEffect#tick()} for a static instance with a player in range:
+ * refreshing providers, picking dust options, building and recording the shape, and sending
+ * it through the dispatcher.
+ * <p>
+ * The effect is loaded from a group file by the real plugin, running on stand-ins.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EffectTickBenchmark {
+
+    @Param({"8", "64", "512"})
+    public int amount;
+
+    @Param({"end_rod", "colour", "rainbow"})
+    public String particle;
+
+    private Path dataFolder;
+    private WbsParticleEffects plugin;
+    private PersistentEffect effect;
+
+    @Setup
+    public void setup() throws IOException {
+        World world = StandIns.world("world");
+
+        dataFolder = Files.createTempDirectory("wbspe-bench");
+        Path effects = Files.createDirectories(dataFolder.resolve("effects"));
+        Files.write(effects.resolve("Tick.yml"), generateGroup().getBytes(StandardCharsets.UTF_8));
+
+        plugin = StandIns.plugin(dataFolder.toFile());
+        StandIns.setOnlinePlayers(Collections.singletonList(
+                StandIns.player(new Location(world, 0, 100, 8)).getPlayer()));
+
+        plugin.settings.reloadChanged();
+        effect = plugin.settings.getEffectGroupInstance("Bench").getEffects().get(0);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        plugin.settings.shutdown();
+        StandIns.deleteRecursively(dataFolder);
+    }
+
+    /**
+     * The effect's own run, then sending what it queued.
+     */
+    @Benchmark
+    public int tick() {
+        int particles = effect.tick();
+        plugin.scheduler.getDispatcher().flush();
+        return particles;
+    }
+
+    /**
+     * A whole scheduler tick around the same run, including the budget and timing wheel.
+     */
+    @Benchmark
+    public void schedulerTick() {
+        plugin.scheduler.tick();
+    }
+
+    private String generateGroup() {
+        StringBuilder yaml = new StringBuilder()
+                .append("instances:\n")
+                .append("  Bench:\n")
+                .append("    location: '0,100,0,world'\n")
+                .append("    enabled: true\n")
+                .append("effects:\n")
+                .append("  '1':\n")
+                .append("    type: 'cuboid'\n")
+                .append("    amount: ").append(amount).append('\n')
+                .append("    interval: 1\n")
+                .append("    x: 4\n")
+                .append("    y: 3\n")
+                .append("    z:\n")
+                .append("      pulse:\n")
+                .append("        min: 2\n")
+                .append("        max: 4\n")
+                .append("        period: 75\n");
+
+        switch (particle) {
+            case "colour":
+                yaml.append("    particle: 'redstone'\n")
+                        .append("    size: 1\n")
+                        .append("    colour:\n")
+                        .append("      x: 255\n")
+                        .append("      y: 120\n")
+                        .append("      z: 0\n");
+                break;
+            case "rainbow":
+                yaml.append("    particle: 'redstone'\n")
+                        .append("    size: 1\n")
+                        .append("    rainbow: true\n");
+                break;
+            default:
+                yaml.append("    particle: 'end_rod'\n");
+        }
+
+        return yaml.toString();
+    }
+}
@@ -0,0 +1,112 @@
+package wbs.particleeffects.storage;
+
+import org.openjdk.jmh.annotations.*;
+import wbs.particleeffects.WbsParticleEffects;
+import wbs.particleeffects.bench.StandIns;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading and saving a generated effects folder, with ten instances per group file, through
+ * the real plugin running on stand-ins.
+ * <p>
+ * {@link #reload()} is a full reload, from YAML or from an up-to-date snapshot depending on
+ * {@link #snapshot}. {@link #saveAll()} writes every instance of every group, as a forced save does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StorageBenchmark {
+
+    private static final int INSTANCES_PER_GROUP = 10;
+
+    @Param({"1000", "10000"})
+    public int instances;
+
+    @Param({"false", "true"})
+    public boolean snapshot;
+
+    private Path dataFolder;
+    private WbsParticleEffects plugin;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        StandIns.world("world");
+
+        dataFolder = Files.createTempDirectory("wbspe-bench");
+        Path effects = Files.createDirectories(dataFolder.resolve("effects"));
+
+        int groups = instances / INSTANCES_PER_GROUP;
+        for (int group = 0; group < groups; group++) {
+            Files.write(effects.resolve("Group" + group + ".yml"), generateGroup(group).getBytes(StandardCharsets.UTF_8));
+        }
+
+        String config = "snapshot-cache: " + snapshot + "\n";
+        Files.write(dataFolder.resolve("config.yml"), config.getBytes(StandardCharsets.UTF_8));
+
+        plugin = StandIns.plugin(dataFolder.toFile());
+
+        // Writes the snapshot, when enabled, so every measured reload can use it
+        plugin.settings.reload();
+        plugin.settings.flushSaves();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        plugin.settings.disableAllEffects();
+        plugin.settings.shutdown();
+        StandIns.deleteRecursively(dataFolder);
+    }
+
+    @Benchmark
+    public void reload() {
+        plugin.settings.reload();
+    }
+
+    @Benchmark
+    public void saveAll() {
+        plugin.settings.saveAllInstances(true);
+        plugin.settings.flushSaves();
+    }
+
+    private static String generateGroup(int group) {
+        StringBuilder yaml = new StringBuilder("instances:\n");
+        for (int i = 0; i < INSTANCES_PER_GROUP; i++) {
+            yaml.append("  Instance").append(group).append('_').append(i).append(":\n")
+                    .append("    location: '").append(i * 16).append(",100,").append(group * 16).append(",world'\n")
+                    .append("    enabled: true\n");
+        }
+
+        yaml.append("created_by: 'Benchmark'\n")
+                .append("description: 'Generated group ").append(group).append("'\n")
+                .append("effects:\n")
+                .append("  '1':\n")
+                .append("    type: 'ring'\n")
+                .append("    particle: 'end_rod'\n")
+                .append("    amount: 7\n")
+                .append("    interval: 1\n")
+                .append("    rotation:\n")
+                .append("      cycle:\n")
+                .append("        start: 0\n")
+                .append("        end: 360\n")
+                .append("        period: 500\n")
+                .append("    about:\n")
+                .append("      x: 0\n")
+                .append("      y: 1\n")
+                .append("      z: 0\n")
+                .append("    speed: 0.88\n")
+                .append("    radius:\n")
+                .append("      pulse:\n")
+                .append("        min: 4\n")
+                .append("        max: 7\n")
+                .append("        period: 75\n");
+        return yaml.toString();
+    }
+}
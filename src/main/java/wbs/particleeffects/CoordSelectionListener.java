@@ -8,15 +8,15 @@ import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.util.Vector;
-import wbs.particleeffects.instance.AmbientEffectGroupInstance;
+import wbs.particleeffects.session.PlayerData;
 import wbs.utils.util.plugin.WbsMessenger;
-import wbs.utils.util.plugin.WbsPlugin;
-
-import java.util.Set;
 
 public class CoordSelectionListener extends WbsMessenger implements Listener {
-    public CoordSelectionListener(WbsPlugin plugin) {
+
+    private final WbsParticleEffects plugin;
+    public CoordSelectionListener(WbsParticleEffects plugin) {
         super(plugin);
+        this.plugin = plugin;
     }
 
     @EventHandler
@@ -24,9 +24,8 @@ public class CoordSelectionListener extends WbsMessenger implements Listener {
         Player player = event.getPlayer();
 
         if (event.getBlock().getType() == Material.LAPIS_BLOCK) {
-            if (PlayerData.playerDataMap.containsKey(player)) {
-                PlayerData data = PlayerData.playerDataMap.get(player);
-
+            PlayerData data = plugin.sessions.getIfPresent(player);
+            if (data != null) {
                 if (data.selectingFor != null) {
                     event.setCancelled(true);
                     if (data.pos1 == null) {
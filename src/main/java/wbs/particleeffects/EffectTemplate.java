@@ -0,0 +1,447 @@
+package wbs.particleeffects;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.Particle;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
+import wbs.particleeffects.PersistentEffect.Trigger;
+import wbs.particleeffects.render.FrameBake;
+import wbs.particleeffects.render.FrameRecorder;
+import wbs.particleeffects.render.GeometryWorkers;
+import wbs.particleeffects.render.ParticleFrame;
+import wbs.utils.exceptions.InvalidConfigurationException;
+import wbs.utils.util.WbsEnums;
+import wbs.utils.util.configuration.WbsConfigReader;
+import wbs.utils.util.particles.WbsParticleEffect;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One effect from a group's config, parsed once and shared by every instance of the group.
+ * <p>
+ * Effects whose shape repeats (or never changes) are built here rather than per instance:
+ * instances step through the shape together, and the first to need each step builds it
+ * for the rest. Instances that fall behind, such as ones that were paused, catch up to
+ * the group instead of building their own.
+ * <p>
+ * With {@link GeometryWorkers} enabled, the step after the latest is built on a worker
+ * while the current one plays, so the instance that reaches it next only has to collect it.
+ */
+public class EffectTemplate {
+
+    private static final int MAX_CYCLE_LENGTH = 72000;
+    private static final FrameRecorder recorder = new FrameRecorder();
+
+    private final WbsParticleEffects plugin;
+    private final String name;
+    private final ConfigurationSection section;
+    private final String directory;
+
+    private final int interval; // In ticks
+    private final Particle particle;
+    private Trigger trigger = Trigger.ALWAYS;
+    private final boolean force;
+
+    // Whether the effect's shape can change between builds. If not, it only needs building once.
+    private final boolean dynamicShape;
+    // Builds before the shape repeats, or -1 if it never does
+    private final int cycleLength;
+
+    private final boolean dustData;
+    private final boolean rainbow;
+    private Object data; // For particles requiring data other than dust
+
+    // Shared geometry, null when the shape doesn't repeat and each instance builds its own
+    @Nullable
+    private final WbsParticleEffect geometry;
+    private long builtStep = -1;
+    // The furthest step any instance has asked for, whether it was built, baked or reused
+    private long latestStep = -1;
+    private ParticleFrame builtFrame;
+    // The build after builtStep, in progress on a worker. The geometry is the worker's until it's collected.
+    @Nullable
+    private GeometryWorkers.PendingFrame nextFrame;
+    @Nullable
+    private FrameBake bake;
+
+    public EffectTemplate(PersistentEffectGroup group, ConfigurationSection section, ParticleEffectSettings settings, String directory) {
+        this.plugin = settings.getPlugin();
+        this.name = group.getId() + "/" + section.getName();
+        this.section = section;
+        this.directory = directory;
+
+        WbsConfigReader.requireNotNull(section, "interval", settings, directory);
+        interval = section.getInt("interval");
+
+        WbsParticleEffect effect = WbsParticleEffect.buildParticleEffect(section, settings, directory);
+
+        if (section.get("cache-shape") != null) {
+            dynamicShape = !section.getBoolean("cache-shape");
+        } else {
+            dynamicShape = hasDynamicShape(section);
+        }
+
+        cycleLength = dynamicShape ? getCycleLength(section) : 1;
+
+        force = section.getBoolean("force", false);
+
+        WbsConfigReader.requireNotNull(section, "particle", settings, directory);
+        String particleString = section.getString("particle");
+        particle = WbsEnums.particleFromString(particleString);
+
+        if (particle == null) {
+            settings.logError("Invalid particle: " + particleString, directory + "/particle");
+            throw new InvalidConfigurationException();
+        }
+
+        String triggerString = section.getString("trigger");
+        if (triggerString != null) {
+            try {
+                trigger = Trigger.valueOf(triggerString.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                settings.logError("Invalid trigger: " + triggerString + ". Use always, enter, or leave.", directory + "/trigger");
+                throw new InvalidConfigurationException();
+            }
+        }
+
+        Class<?> clazz = particle.getDataType();
+        dustData = clazz == Particle.DustOptions.class;
+        rainbow = dustData && section.getBoolean("rainbow", false);
+
+        if (clazz == BlockData.class) {
+            WbsConfigReader.requireNotNull(section, "blockType", settings, directory);
+            Material blockType = WbsEnums.materialFromString(section.getString("blockType"));
+
+            if (!blockType.isBlock()) {
+                throw new InvalidConfigurationException();
+            }
+
+            data = Bukkit.createBlockData(blockType);
+        } else if (clazz == ItemStack.class) {
+            WbsConfigReader.requireNotNull(section, "itemType", settings, directory);
+            Material blockType = WbsEnums.materialFromString(section.getString("itemType"));
+
+            if (!blockType.isItem()) {
+                throw new InvalidConfigurationException();
+            }
+
+            data = Bukkit.createBlockData(blockType);
+        }
+
+        if (cycleLength > 0) {
+            geometry = effect;
+        } else {
+            geometry = null;
+        }
+
+        if (section.getBoolean("bake", false) && dynamicShape) {
+            if (cycleLength > 0) {
+                bake = plugin.bakes.create(name, cycleLength);
+            } else {
+                settings.logError("This effect can't be baked; every provider in it must have a whole number period, " +
+                        "and together they must repeat within " + MAX_CYCLE_LENGTH + " builds.", directory + "/bake");
+            }
+        }
+    }
+
+    // Keys read by the plugin rather than the particle effect, which don't affect its shape
+    private static final Set<String> NON_SHAPE_KEYS = new HashSet<>(Arrays.asList(
+            "interval", "particle", "offset", "trigger", "cache-shape", "bake", "force",
+            "rainbow", "rainbowSpeed", "colour", "size", "blockType", "itemType"
+    ));
+
+    // Plain values known to give the same points every build, for every type and for each type.
+    // Anything else may feed something random, like a variation, so effects using it are rebuilt every run.
+    private static final Set<String> CONSTANT_KEYS = new HashSet<>(Arrays.asList("type", "amount", "speed"));
+    private static final Map<String, Set<String>> CONSTANT_KEYS_BY_TYPE = new HashMap<>();
+
+    static {
+        CONSTANT_KEYS_BY_TYPE.put("ring", new HashSet<>(Arrays.asList("radius", "rotation")));
+        CONSTANT_KEYS_BY_TYPE.put("sphere", new HashSet<>(Arrays.asList("radius", "rotation")));
+        CONSTANT_KEYS_BY_TYPE.put("spiral", new HashSet<>(Arrays.asList("radius", "height", "rotation")));
+        CONSTANT_KEYS_BY_TYPE.put("cuboid", new HashSet<>(Arrays.asList("x", "y", "z", "rotation")));
+        CONSTANT_KEYS_BY_TYPE.put("normal", new HashSet<>(Arrays.asList("x", "y", "z")));
+    }
+
+    /**
+     * Check if any value that shapes the particle effect can change between builds. Values from a
+     * provider such as a cycle or pulse can, as can plain values that aren't known to be constant
+     * for the effect's type. Known plain values and x/y/z vectors of plain numbers are constant.
+     * Effects that are really constant can say so with cache-shape: true.
+     * @param section The effect's config section
+     * @return True if the effect's points may differ between builds
+     */
+    private static boolean hasDynamicShape(ConfigurationSection section) {
+        String type = section.getString("type", "").trim().toLowerCase();
+        Set<String> typeConstantKeys = CONSTANT_KEYS_BY_TYPE.getOrDefault(type, Collections.emptySet());
+
+        for (String key : section.getKeys(false)) {
+            if (NON_SHAPE_KEYS.contains(key)) {
+                continue;
+            }
+
+            ConfigurationSection valueSection = section.getConfigurationSection(key);
+            if (valueSection == null) {
+                if (!CONSTANT_KEYS.contains(key) && !typeConstantKeys.contains(key)) {
+                    return true;
+                }
+                continue;
+            }
+
+            for (String valueKey : valueSection.getKeys(false)) {
+                boolean isAxis = valueKey.equals("x") || valueKey.equals("y") || valueKey.equals("z");
+                if (!isAxis || valueSection.isConfigurationSection(valueKey)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Find how many builds it takes for the effect to repeat, assuming each provider steps once per build.
+     * @param section The effect's config section
+     * @return The lowest common multiple of every provider's period, or -1 if there isn't one
+     */
+    private static int getCycleLength(ConfigurationSection section) {
+        long cycleLength = 1;
+        for (String key : section.getKeys(false)) {
+            if (NON_SHAPE_KEYS.contains(key)) {
+                continue;
+            }
+
+            ConfigurationSection valueSection = section.getConfigurationSection(key);
+            if (valueSection != null) {
+                cycleLength = combinePeriods(valueSection, cycleLength);
+                if (cycleLength == -1) {
+                    return -1;
+                }
+            }
+        }
+
+        return (int) cycleLength;
+    }
+
+    private static long combinePeriods(ConfigurationSection section, long cycleLength) {
+        boolean hasValues = false;
+        for (String key : section.getKeys(false)) {
+            ConfigurationSection valueSection = section.getConfigurationSection(key);
+            if (valueSection != null) {
+                cycleLength = combinePeriods(valueSection, cycleLength);
+                if (cycleLength == -1) {
+                    return -1;
+                }
+            } else if (!key.equals("period") && !key.equals("x") && !key.equals("y") && !key.equals("z")) {
+                hasValues = true;
+            }
+        }
+
+        if (section.contains("period")) {
+            double period = section.getDouble("period");
+            if (period < 1 || period != Math.floor(period)) {
+                return -1;
+            }
+
+            long longPeriod = (long) period;
+            long gcd = cycleLength;
+            long remainder = longPeriod;
+            while (remainder != 0) {
+                long temp = gcd % remainder;
+                gcd = remainder;
+                remainder = temp;
+            }
+
+            cycleLength = cycleLength / gcd * longPeriod;
+            if (cycleLength > MAX_CYCLE_LENGTH) {
+                return -1;
+            }
+        } else if (hasValues) {
+            // A provider that never repeats, like random
+            return -1;
+        }
+
+        return cycleLength;
+    }
+
+    /**
+     * Build a separate particle effect from this template, for instances that can't share geometry.
+     */
+    WbsParticleEffect createEffect(ParticleEffectSettings settings) {
+        return WbsParticleEffect.buildParticleEffect(section, settings, directory);
+    }
+
+    /**
+     * @return True if instances share this template's geometry instead of building their own
+     */
+    public boolean isShared() {
+        return geometry != null;
+    }
+
+    /**
+     * Find the step an instance should play next, keeping it in phase with the rest of the group.
+     * @param lastStep The step the instance last played, or -1 if it hasn't played yet
+     * @return The step to pass to {@link #getFrame(long, World)}
+     */
+    long nextStep(long lastStep) {
+        // Behind (new, or paused while the rest carried on), so catch up with the group
+        return Math.max(lastStep + 1, latestStep);
+    }
+
+    /**
+     * Get the shared frame for a step, building it if this is the first instance to reach it.
+     * Only valid when {@link #isShared()}.
+     * @param step A step from {@link #nextStep(long)}
+     * @param world Any world, used only while recording
+     * @param fraction The fraction of the frame's points to keep, for lower detail
+     * @return The frame at that step, thinned to the given fraction
+     */
+    ParticleFrame getFrame(long step, World world, double fraction) {
+        latestStep = Math.max(latestStep, step);
+
+        if (!dynamicShape) {
+            step = 0;
+        }
+
+        if (bake != null && !bake.isAbandoned()) {
+            int index = (int) (step % bake.getCycleLength());
+
+            ParticleFrame frame = bake.get(index);
+            if (frame == null) {
+                // Still in the first cycle, so the geometry's providers are in step with the index
+                frame = buildFrame(step, world);
+
+                if (!bake.put(index, frame)) {
+                    plugin.logger.warning("Ran out of bake memory for " + bake.getName() + "; it will build live instead.");
+                    return frame.thin(fraction);
+                }
+            }
+
+            // Thinned copies of baked frames last as long as the bake, so they count toward its memory
+            return frame.thin(fraction, bake);
+        }
+
+        if (step == builtStep && builtFrame != null) {
+            return builtFrame.thin(fraction);
+        }
+
+        return buildFrame(step, world).thin(fraction);
+    }
+
+    private ParticleFrame buildFrame(long step, World world) {
+        assert geometry != null;
+
+        if (nextFrame != null) {
+            builtFrame = nextFrame.collect();
+            nextFrame = null;
+        } else {
+            geometry.build();
+            builtFrame = recorder.record(geometry, particle, world);
+        }
+        builtStep = step;
+
+        if (dynamicShape && plugin.geometry.isEnabled() && !isBaked(step + 1)) {
+            nextFrame = plugin.geometry.submit(geometry, -1, particle, world);
+        }
+
+        return builtFrame;
+    }
+
+    private boolean isBaked(long step) {
+        return bake != null && !bake.isAbandoned() && bake.get((int) (step % bake.getCycleLength())) != null;
+    }
+
+    /**
+     * Free anything this template holds outside of itself, such as its bake. Call when discarding the group.
+     */
+    public void release() {
+        nextFrame = null;
+        if (bake != null) {
+            plugin.bakes.release(bake);
+            bake = null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The effect's config section, for instances to read their own providers from
+     */
+    ConfigurationSection getSection() {
+        return section;
+    }
+
+    String getDirectory() {
+        return directory;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public Particle getParticle() {
+        return particle;
+    }
+
+    public Trigger getTrigger() {
+        return trigger;
+    }
+
+    public boolean isForced() {
+        return force;
+    }
+
+    public boolean isDynamicShape() {
+        return dynamicShape;
+    }
+
+    public int getCycleLength() {
+        return cycleLength;
+    }
+
+    /**
+     * @return True if the particle takes dust options, which instances work out for themselves
+     */
+    public boolean hasDustData() {
+        return dustData;
+    }
+
+    public boolean isRainbow() {
+        return rainbow;
+    }
+
+    /**
+     * @return Particle data that's the same for every instance, or null for none or dust
+     */
+    @Nullable
+    public Object getData() {
+        return data;
+    }
+
+    /**
+     * @return The shared geometry's particle effect, or null if instances build their own
+     */
+    @Nullable
+    public WbsParticleEffect getGeometry() {
+        return geometry;
+    }
+
+    /**
+     * @return The shared bake, or null if this effect isn't baked
+     */
+    @Nullable
+    public FrameBake getBake() {
+        return bake;
+    }
+}
@@ -2,19 +2,27 @@ package wbs.particleeffects;
 
 import org.bukkit.Location;
 import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
+import org.jetbrains.annotations.Nullable;
 
 import wbs.particleeffects.instance.EffectGroupInstance;
+import wbs.particleeffects.render.ParticleDispatcher;
+import wbs.particleeffects.storage.AsyncConfigWriter;
+import wbs.particleeffects.storage.EffectFileWatcher;
+import wbs.particleeffects.storage.FileFingerprint;
+import wbs.particleeffects.storage.GroupFileParser;
+import wbs.particleeffects.storage.GroupFileParser.ParsedGroupFile;
+import wbs.particleeffects.storage.InstanceEdit;
+import wbs.particleeffects.storage.SnapshotCache;
 import wbs.utils.exceptions.MissingRequiredKeyException;
 import wbs.utils.exceptions.InvalidConfigurationException;
-import wbs.utils.util.configuration.WbsConfigReader;
 import wbs.utils.util.plugin.WbsSettings;
 
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class ParticleEffectSettings extends WbsSettings {
@@ -23,6 +31,11 @@ public class ParticleEffectSettings extends WbsSettings {
     protected ParticleEffectSettings(WbsParticleEffects plugin) {
         super(plugin);
         this.plugin = plugin;
+        writer = new AsyncConfigWriter(plugin.logger);
+        writer.setWriteListener((file, contents) -> fingerprints.put(file.getName(), new FileFingerprint(file, contents)));
+        writer.setFailureListener(this::onSaveFailed);
+        watcher = new EffectFileWatcher(plugin, getEffectsDirectory(), this::autoReload);
+        snapshotCache = new SnapshotCache(new File(plugin.getDataFolder(), "cache" + File.separator + "effects.snapshot"), plugin.logger);
     }
 
     private final Map<String, PersistentEffectGroup> allGroups = new HashMap<>();
@@ -31,6 +44,28 @@ public class ParticleEffectSettings extends WbsSettings {
 
     private final Map<String, EffectGroupInstance> instancesPendingDeletion = new HashMap<>();
 
+    /**
+     * Groups with at least one instance that changed since the last save.
+     */
+    private final Set<PersistentEffectGroup> dirtyGroups = new HashSet<>();
+
+    private final AsyncConfigWriter writer;
+    private final EffectFileWatcher watcher;
+    private final SnapshotCache snapshotCache;
+    private boolean useSnapshot = false;
+
+    /**
+     * Fingerprints of effect files by file name, as last loaded or saved.
+     * Written from the save thread.
+     */
+    private final Map<String, FileFingerprint> fingerprints = new ConcurrentHashMap<>();
+
+    /**
+     * Effect files that failed to save, by file name, to the instance removals that were lost with them.
+     * Written from the save thread, and retried on the next save.
+     */
+    private final Map<String, List<String>> failedSaves = new ConcurrentHashMap<>();
+
     public WbsParticleEffects getPlugin() {
         return plugin;
     }
@@ -42,12 +77,18 @@ public class ParticleEffectSettings extends WbsSettings {
 
     public void reload(boolean save) {
         saveAllInstances(false);
+        // Files are read again below, so any saves must land first
+        flushSaves();
         disableAllEffects();
 
         instanceNames.clear();
+        plugin.bakes.clear();
 
         allGroups.clear();
         allInstances.clear();
+        dirtyGroups.clear();
+        fingerprints.clear();
+        failedSaves.clear();
         errors.clear();
 
         File configFile = new File(plugin.getDataFolder(), "config.yml");
@@ -59,10 +100,32 @@ public class ParticleEffectSettings extends WbsSettings {
         YamlConfiguration config = loadConfigSafely(genConfig("config.yml"));
 
         loadMessageFormat(config);
+        loadTickBudget(config);
+
+        cullDistance = config.getDouble("cull-distance", 64);
+
+        loadDispatch(config);
+
+        loadProfiling(config);
+        loadLod(config);
+
+        double bakeMemoryLimit = config.getDouble("bake-memory-limit", 32);
+        plugin.bakes.setMemoryLimit((long) (Math.max(0, bakeMemoryLimit) * 1024 * 1024));
+
+        int geometryThreads = config.getInt("geometry-threads", 0);
+        if (geometryThreads < 0) {
+            logError("geometry-threads must not be negative.", "config.yml/geometry-threads");
+            geometryThreads = 0;
+        }
+        plugin.geometry.setThreads(geometryThreads);
+
+        useSnapshot = config.getBoolean("snapshot-cache", false);
 
         loadEffects();
         startEnabledEffects();
 
+        updateWatcher(config.getBoolean("auto-reload", false));
+
         if (!errors.isEmpty()) {
             plugin.logger.warning(errors.size() + " errors found:");
         } else {
@@ -70,6 +133,97 @@ public class ParticleEffectSettings extends WbsSettings {
         }
     }
 
+    private double cullDistance = 64;
+
+    /**
+     * @return How close a player must be to a static instance for it to play, or 0 to always play.
+     */
+    public double getCullDistance() {
+        return cullDistance;
+    }
+
+    private void loadDispatch(ConfigurationSection config) {
+        ConfigurationSection dispatchSection = config.getConfigurationSection("dispatch");
+
+        boolean batch = true;
+        int maxPerPlayer = 2000;
+        if (dispatchSection != null) {
+            batch = dispatchSection.getBoolean("batch", true);
+            maxPerPlayer = dispatchSection.getInt("max-particles-per-player", 2000);
+        }
+
+        if (maxPerPlayer < 0) {
+            logError("max-particles-per-player must not be negative.", "config.yml/dispatch/max-particles-per-player");
+            maxPerPlayer = 0;
+        }
+
+        ParticleDispatcher dispatcher = plugin.scheduler.getDispatcher();
+        dispatcher.setEnabled(batch);
+        dispatcher.setMaxParticlesPerPlayer(maxPerPlayer);
+    }
+
+    private void loadLod(ConfigurationSection config) {
+        ConfigurationSection lodSection = config.getConfigurationSection("lod");
+        if (lodSection == null) {
+            plugin.scheduler.getLod().configure(false, 52, 80, 16, 64);
+            return;
+        }
+
+        boolean enabled = lodSection.getBoolean("enabled", false);
+        double startMspt = lodSection.getDouble("start-mspt", 52);
+        double fullMspt = lodSection.getDouble("full-mspt", 80);
+        double nearDistance = lodSection.getDouble("near-distance", 16);
+        double farDistance = lodSection.getDouble("far-distance", 64);
+
+        if (fullMspt <= startMspt) {
+            logError("full-mspt must be more than start-mspt.", "config.yml/lod/full-mspt");
+            fullMspt = startMspt + 28;
+        }
+        if (farDistance < nearDistance) {
+            logError("far-distance must not be less than near-distance.", "config.yml/lod/far-distance");
+            farDistance = nearDistance;
+        }
+
+        plugin.scheduler.getLod().configure(enabled, startMspt, fullMspt, nearDistance, farDistance);
+    }
+
+    private void loadProfiling(ConfigurationSection config) {
+        int csvInterval = 0;
+        ConfigurationSection profilingSection = config.getConfigurationSection("profiling");
+        if (profilingSection != null) {
+            csvInterval = profilingSection.getInt("csv-interval", 0);
+        }
+
+        if (csvInterval < 0) {
+            logError("csv-interval must not be negative.", "config.yml/profiling/csv-interval");
+            csvInterval = 0;
+        }
+
+        plugin.profiler.setCsvInterval(csvInterval);
+    }
+
+    private void loadTickBudget(ConfigurationSection config) {
+        ConfigurationSection budgetSection = config.getConfigurationSection("tick-budget");
+
+        int maxParticles = 0;
+        double maxTime = 0;
+        if (budgetSection != null) {
+            maxParticles = budgetSection.getInt("max-particles", 0);
+            maxTime = budgetSection.getDouble("max-time", 0);
+        }
+
+        if (maxParticles < 0) {
+            logError("max-particles must not be negative.", "config.yml/tick-budget/max-particles");
+            maxParticles = 0;
+        }
+        if (maxTime < 0) {
+            logError("max-time must not be negative.", "config.yml/tick-budget/max-time");
+            maxTime = 0;
+        }
+
+        plugin.scheduler.getBudget().setLimits(maxParticles, maxTime);
+    }
+
     private void startEnabledEffects() {
         for (EffectGroupInstance instance : allInstances.values()) {
             if (instance.isActive()) {
@@ -79,34 +233,236 @@ public class ParticleEffectSettings extends WbsSettings {
     }
 
     private void loadEffects() {
-        final File effectsDirectory =  new File(plugin.getDataFolder() + File.separator + "effects");
-
-        File[] effectFiles = effectsDirectory.listFiles();
-        if (effectFiles == null) {
-            logError("An unexpected error occurred due while loading the effects directory. Please contact your system administrator.", "Internal");
+        List<File> toLoad = listEffectFiles();
+        if (toLoad == null) {
             return;
         }
 
+        long startTime = System.nanoTime();
+
+        Map<String, SnapshotCache.Entry> snapshot = Collections.emptyMap();
+        if (useSnapshot) {
+            snapshot = snapshotCache.read();
+        }
+
+        // Parse in parallel, then build groups here in file order so errors stay deterministic
+        List<ParsedGroupFile> parsedFiles = GroupFileParser.parseAll(toLoad, snapshot);
+
+        long parsedTime = System.nanoTime();
+
         int successful = 0;
         int failed = 0;
+        int fromSnapshot = 0;
 
-        for (File file : effectFiles) {
-            ConfigurationSection effectGroupConfig = loadConfigSafely(file);
-            assert effectGroupConfig != null;
-            try {
-                String id = file.getName().split("\\.")[0];
-                groupFiles.put(id, file);
-
-                PersistentEffectGroup newGroup = new PersistentEffectGroup(id, effectGroupConfig, this, file.getName());
-                allGroups.put(newGroup.getId(), newGroup);
+        for (ParsedGroupFile parsed : parsedFiles) {
+            if (parsed.isFromSnapshot()) {
+                fromSnapshot++;
+            }
 
+            if (loadGroup(parsed)) {
                 successful++;
-            } catch (MissingRequiredKeyException | InvalidConfigurationException e) {
+            } else {
                 failed++;
             }
         }
 
+        long endTime = System.nanoTime();
+
         logger.info("Successfully loaded " + successful + " groups. Failed to load " + failed + " groups.");
+
+        String timing = "Read effect files in " + formatMillis(parsedTime - startTime) + "ms, " +
+                "built groups in " + formatMillis(endTime - parsedTime) + "ms";
+        if (useSnapshot) {
+            timing += " (" + fromSnapshot + "/" + parsedFiles.size() + " files from snapshot)";
+        }
+        logger.info(timing);
+
+        // Rewrite the snapshot if anything in it was stale or missing
+        if (useSnapshot && (fromSnapshot != parsedFiles.size() || snapshot.size() != parsedFiles.size())) {
+            writer.execute(() -> snapshotCache.write(parsedFiles));
+        }
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.1f", nanos / 1_000_000.0);
+    }
+
+    @Nullable
+    private List<File> listEffectFiles() {
+        File[] effectFiles = getEffectsDirectory().listFiles();
+        if (effectFiles == null) {
+            logError("An unexpected error occurred due while loading the effects directory. Please contact your system administrator.", "Internal");
+            return null;
+        }
+
+        List<File> files = new ArrayList<>();
+        for (File file : effectFiles) {
+            // Skip leftovers from an interrupted save
+            if (file.isFile() && !file.getName().endsWith(".tmp")) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private File getEffectsDirectory() {
+        return new File(plugin.getDataFolder() + File.separator + "effects");
+    }
+
+    private boolean loadGroup(ParsedGroupFile parsed) {
+        File file = parsed.getFile();
+        for (String error : parsed.getErrors()) {
+            logError(error, file.getName());
+        }
+
+        if (parsed.getFingerprint() != null) {
+            fingerprints.put(file.getName(), parsed.getFingerprint());
+        }
+
+        YamlConfiguration effectGroupConfig = parsed.getConfig();
+        if (effectGroupConfig == null) {
+            return false;
+        }
+
+        try {
+            String id = parsed.getId();
+            groupFiles.put(id, file);
+
+            PersistentEffectGroup newGroup = new PersistentEffectGroup(id, effectGroupConfig, this, file.getName());
+            allGroups.put(newGroup.getId(), newGroup);
+
+            return true;
+        } catch (MissingRequiredKeyException | InvalidConfigurationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reload only the effect files that were added, edited or deleted since they were last
+     * loaded. Instances from every other file keep running without interruption.
+     * <p>
+     * Changed files win over unsaved changes to their instances; everything else that
+     * changed in game is saved once the scan is done.
+     * @return The number of files that were reloaded or unloaded
+     */
+    public int reloadChanged() {
+        // Let saves already queued land, since they update the fingerprints and so won't show up as changes.
+        // Don't save anything new until after the scan, or it would write over edits made to the files.
+        flushSaves();
+        errors.clear();
+
+        List<File> files = listEffectFiles();
+        if (files == null) {
+            saveAllInstances(false);
+            return 0;
+        }
+
+        int changed = 0;
+
+        Set<String> present = new HashSet<>();
+        List<File> candidates = new ArrayList<>();
+        for (File file : files) {
+            present.add(file.getName());
+
+            FileFingerprint known = fingerprints.get(file.getName());
+            if (known == null || !known.matchesMetadata(file)) {
+                candidates.add(file);
+            }
+        }
+
+        for (String fileName : new ArrayList<>(fingerprints.keySet())) {
+            if (!present.contains(fileName)) {
+                unloadFile(fileName);
+                fingerprints.remove(fileName);
+                changed++;
+            }
+        }
+
+        for (ParsedGroupFile parsed : GroupFileParser.parseAll(candidates)) {
+            String fileName = parsed.getFile().getName();
+
+            FileFingerprint known = fingerprints.get(fileName);
+            FileFingerprint current = parsed.getFingerprint();
+            if (known != null && current != null && known.getHash().equals(current.getHash())) {
+                // Touched, but not actually edited
+                fingerprints.put(fileName, current);
+                continue;
+            }
+
+            unloadFile(fileName);
+            if (loadGroup(parsed)) {
+                for (EffectGroupInstance instance : allGroups.get(parsed.getId()).getInstances()) {
+                    if (instance.isActive()) {
+                        instance.start();
+                    }
+                }
+            }
+            changed++;
+        }
+
+        if (changed != 0) {
+            logger.info("Reloaded " + changed + " changed effect files.");
+        }
+
+        saveAllInstances(false);
+
+        return changed;
+    }
+
+    /**
+     * Stop and forget everything loaded from the given effect file.
+     */
+    private void unloadFile(String fileName) {
+        String groupId = fileName.split("\\.")[0];
+
+        PersistentEffectGroup group = allGroups.remove(groupId);
+        groupFiles.remove(groupId);
+        failedSaves.remove(fileName);
+
+        Iterator<Map.Entry<String, String>> iterator = instanceNames.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            if (!entry.getValue().equals(fileName)) {
+                continue;
+            }
+            iterator.remove();
+
+            EffectGroupInstance instance = allInstances.get(entry.getKey());
+            if (instance != null && instance.getType().getId().equals(groupId)) {
+                allInstances.remove(entry.getKey());
+                instance.disable();
+            }
+        }
+
+        instancesPendingDeletion.values().removeIf(instance -> instance.getType().getId().equals(groupId));
+
+        if (group != null) {
+            // Disabling marks the group dirty, so forget it only after, or its old instances would be saved over the file
+            dirtyGroups.remove(group);
+            group.release();
+        }
+    }
+
+    private void updateWatcher(boolean autoReload) {
+        if (autoReload == watcher.isRunning()) {
+            return;
+        }
+
+        if (autoReload) {
+            try {
+                watcher.start();
+            } catch (IOException e) {
+                logError("Failed to watch the effects directory for changes: " + e.getMessage(), "config.yml/auto-reload");
+            }
+        } else {
+            watcher.stop();
+        }
+    }
+
+    private void autoReload() {
+        if (reloadChanged() != 0 && !errors.isEmpty()) {
+            plugin.logger.warning(errors.size() + " errors found while auto-reloading. Do /pe errors to see them.");
+        }
     }
 
     public List<String> allGroupNames() {
@@ -154,6 +510,7 @@ public class ParticleEffectSettings extends WbsSettings {
         instanceNames.put(instanceId, currentGroupFile.getName());
 
         allInstances.put(instance.getId(), instance);
+        instance.getType().addInstance(instance);
         if (instance.isActive()) {
             instance.start();
         }
@@ -184,14 +541,16 @@ public class ParticleEffectSettings extends WbsSettings {
             // Put new file name in so on each subsequent duplicate, the previous duplicate's file is shown.
             instanceNames.put(instanceId, currentGroupFile.getName());
 
-            allInstances.get(instanceId).disable();
-            allInstances.remove(instanceId);
+            EffectGroupInstance duplicate = allInstances.remove(instanceId);
+            duplicate.disable();
+            duplicate.getType().removeInstance(duplicate);
 
             throw new InvalidConfigurationException();
         }
         instanceNames.put(instanceId, currentGroupFile.getName());
 
         allInstances.put(instance.getId(), instance);
+        instance.getType().addInstance(instance);
         if (instance.isActive()) {
             instance.start();
         }
@@ -217,149 +576,148 @@ public class ParticleEffectSettings extends WbsSettings {
      */
     public boolean createNewInstance(PersistentEffectGroup group, String id, Location loc1, Location loc2, boolean enabled) {
         File groupFile = groupFiles.get(group.getId());
-        FileConfiguration effectGroupConfig = YamlConfiguration.loadConfiguration(groupFile);
-    //    ConfigurationSection effectGroupConfig = loadConfigSafely(groupFile);
-
-
-        ConfigurationSection effectsConfig = WbsConfigReader.getRequiredSection(effectGroupConfig, "effects", this, groupFile.getName());
 
         EffectGroupInstance newInstance;
         try {
-            newInstance = EffectGroupInstance.buildInstance(group, id, loc1, loc2, enabled);
+            newInstance = EffectGroupInstance.buildInstance(group, id, loc1, loc2, enabled, this);
 
-            newInstance.readEffectsFromConfig(effectsConfig, this, groupFile.getName() + "/effects");
+            newInstance.createEffects(this);
 
             addInstance(newInstance, "Command");
         } catch (MissingRequiredKeyException | InvalidConfigurationException e) {
             return false;
         }
 
-        ConfigurationSection instancesSection = WbsConfigReader.getRequiredSection(effectGroupConfig, "instances", this, groupFile.getName());
-
-
-        return saveInstance(effectGroupConfig, groupFile, newInstance);
-    }
-
-    private boolean saveInstance(FileConfiguration fileConfig, File file, EffectGroupInstance instance) {
-        try {
-            fileConfig.save(file);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
+        InstanceEdit edit = new InstanceEdit();
+        newInstance.writeToConfig(edit.getInstancesSection());
+        edit.countWritten();
+        newInstance.setSaved();
 
+        writer.submit(groupFile, edit);
         return true;
     }
 
     /**
-     * Save all instances that loaded correctly.
+     * Save all instances that loaded correctly. Instance state is captured immediately,
+     * but files are written in the background; use {@link #flushSaves()} to wait for them.
      * @param force Whether or not to force save all instances.
      *              If true, even instances that weren't updated will save.
      */
     public void saveAllInstances(boolean force) {
-        removePendingInstances();
-
-        Map<PersistentEffectGroup, FileConfiguration> fileConfigs = new HashMap<>();
-
-        // Load configs
-        for (PersistentEffectGroup group : allGroups.values()) {
-            if (!fileConfigs.containsKey(group)) {
-                boolean save = force;
-                if (!save) {
-                    for (EffectGroupInstance instance : getAllInstances().values()) {
-                        if (group.equals(instance.getType())) {
-                            if (instance.isUpdated()) {
-                                save = true;
-                            }
-                        }
-                    }
-                }
+        Map<PersistentEffectGroup, InstanceEdit> edits = new HashMap<>();
 
-                if (save) {
-                    FileConfiguration effectGroupConfig = YamlConfiguration.loadConfiguration(groupFiles.get(group.getId()));
+        collectFailedSaves(edits);
+        collectPendingDeletions(edits);
 
-                    fileConfigs.put(group, effectGroupConfig);
-                }
-            }
-        }
+        Collection<PersistentEffectGroup> toSave = force ? allGroups.values() : dirtyGroups;
 
-        // Write to configs
+        // Snapshot every instance of those groups, so the file matches memory
         int instancesSaved = 0;
-        int failedToSave = 0;
-        for (EffectGroupInstance instance : allInstances.values()) {
-            PersistentEffectGroup group = instance.getType();
-
-            FileConfiguration effectGroupConfig = fileConfigs.get(group);
-            if (effectGroupConfig == null) {
-                continue;
+        for (PersistentEffectGroup group : toSave) {
+            for (EffectGroupInstance instance : group.getInstances()) {
+                InstanceEdit edit = edits.computeIfAbsent(group, key -> new InstanceEdit());
+                instance.writeToConfig(edit.getInstancesSection());
+                edit.countWritten();
+                instance.setSaved();
+                instancesSaved++;
             }
+        }
+        dirtyGroups.clear();
 
-            try {
-                WbsConfigReader.requireNotNull(effectGroupConfig, "instances", this, groupFiles.get(group.getId()).getName());
-            } catch (MissingRequiredKeyException e) {
-                failedToSave++;
+        int deleted = 0;
+        for (Map.Entry<PersistentEffectGroup, InstanceEdit> entry : edits.entrySet()) {
+            File groupFile = groupFiles.get(entry.getKey().getId());
+            if (groupFile == null || allGroups.get(entry.getKey().getId()) != entry.getKey()) {
+                // Unloaded since it changed; its file is gone or belongs to a newer group now
                 continue;
             }
 
-            ConfigurationSection instancesSection = effectGroupConfig.getConfigurationSection("instances");
+            deleted += entry.getValue().getRemovedCount();
+            writer.submit(groupFile, entry.getValue());
+        }
 
-            if (instancesSection == null) {
-                logError("Instances section was invalid.", groupFiles.get(group.getId()).getName());
-                failedToSave++;
-                continue;
-            }
+        if (deleted != 0) {
+            plugin.logger.info("Deleted " + deleted + " instances.");
+        }
+        if (instancesSaved != 0) {
+            plugin.logger.info("Saved " + instancesSaved + " instances.");
+        }
+    }
+
+    /**
+     * Block until all saves submitted so far have been written to disk.
+     */
+    public void flushSaves() {
+        writer.flush();
+    }
+
+    /**
+     * Run a task on the background save thread, after every save submitted so far.
+     * Tasks run one at a time, in the order they were given.
+     * @param task The task to run
+     */
+    public void runOnSaveThread(Runnable task) {
+        writer.execute(task);
+    }
+
+    /**
+     * Stop watching for file changes, then write any outstanding saves and stop the background save thread.
+     */
+    public void shutdown() {
+        watcher.stop();
+        writer.shutdown();
+    }
 
-            instance.writeToConfig(instancesSection);
-            instancesSaved++;
+    private void onSaveFailed(File file, List<InstanceEdit> edits) {
+        List<String> removed = new ArrayList<>();
+        for (InstanceEdit edit : edits) {
+            removed.addAll(edit.getRemoved());
         }
 
-        // Save configs
+        failedSaves.merge(file.getName(), removed, (existing, added) -> {
+            List<String> merged = new ArrayList<>(existing);
+            merged.addAll(added);
+            return merged;
+        });
+    }
 
-        for (PersistentEffectGroup group : allGroups.values()) {
-            FileConfiguration effectGroupConfig = fileConfigs.get(group);
-            if (fileConfigs.containsKey(group)) {
-                try {
-                    effectGroupConfig.save(groupFiles.get(group.getId()));
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Mark groups whose last save failed as dirty again, so every instance is written again,
+     * and redo the removals that were lost.
+     */
+    private void collectFailedSaves(Map<PersistentEffectGroup, InstanceEdit> edits) {
+        if (failedSaves.isEmpty()) return;
 
-                fileConfigs.remove(group);
+        for (String fileName : new ArrayList<>(failedSaves.keySet())) {
+            List<String> removed = failedSaves.remove(fileName);
+
+            PersistentEffectGroup group = allGroups.get(fileName.split("\\.")[0]);
+            File groupFile = group == null ? null : groupFiles.get(group.getId());
+            if (groupFile == null || !groupFile.getName().equals(fileName)) {
+                // Unloaded since; whatever is in the file now wins
+                continue;
             }
-        }
 
-        if (instancesSaved != 0 || failedToSave != 0) {
-            plugin.logger.info("Saved " + instancesSaved + " instances. Failed to save " + failedToSave + " instances.");
+            dirtyGroups.add(group);
+            if (!removed.isEmpty()) {
+                InstanceEdit edit = edits.computeIfAbsent(group, key -> new InstanceEdit());
+                for (String instanceId : removed) {
+                    edit.remove(instanceId);
+                }
+            }
         }
     }
 
-    private void removePendingInstances() {
+    private void collectPendingDeletions(Map<PersistentEffectGroup, InstanceEdit> edits) {
         if (instancesPendingDeletion.size() == 0) return;
 
-        int deleted = 0;
         for (EffectGroupInstance instance : instancesPendingDeletion.values()) {
             PersistentEffectGroup group = instance.getType();
 
-            FileConfiguration effectGroupConfig = YamlConfiguration.loadConfiguration(groupFiles.get(group.getId()));
-            WbsConfigReader.requireNotNull(effectGroupConfig, "instances", this, groupFiles.get(group.getId()).getName());
-
-            ConfigurationSection instancesSection = effectGroupConfig.getConfigurationSection("instances");
-            assert instancesSection != null;
-
-            instancesSection.set(instance.getId(), null);
-
-            try {
-                effectGroupConfig.save(groupFiles.get(group.getId()));
-                deleted++;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            edits.computeIfAbsent(group, key -> new InstanceEdit()).remove(instance.getId());
         }
 
-        int skipped = instancesPendingDeletion.size() - deleted;
         instancesPendingDeletion.clear();
-
-        plugin.logger.info("Deleted " + deleted + " instances. Skipped " + skipped + " instances.");
     }
 
     public boolean restore(String id) {
@@ -369,6 +727,7 @@ public class ParticleEffectSettings extends WbsSettings {
 
         instancesPendingDeletion.remove(id);
         allInstances.put(deletedInstance.getId(), deletedInstance);
+        deletedInstance.getType().addInstance(deletedInstance);
 
         return true;
     }
@@ -384,6 +743,7 @@ public class ParticleEffectSettings extends WbsSettings {
     public boolean removeInstance(EffectGroupInstance deleteInstance) {
         if (deleteInstance.isLocked()) return false;
         allInstances.remove(deleteInstance.getId());
+        deleteInstance.getType().removeInstance(deleteInstance);
         deleteInstance.disable();
         instancesPendingDeletion.put(deleteInstance.getId(), deleteInstance);
         return true;
@@ -398,14 +758,14 @@ public class ParticleEffectSettings extends WbsSettings {
     }
 
     public Set<EffectGroupInstance> getEffectsWithType(PersistentEffectGroup type) {
-        Set<EffectGroupInstance> matches = new HashSet<>();
-
-        for (EffectGroupInstance instance : allInstances.values()) {
-            if (instance.getType().equals(type)) {
-                matches.add(instance);
-            }
-        }
+        return new HashSet<>(type.getInstances());
+    }
 
-        return matches;
+    /**
+     * Mark an instance's group as needing to be saved.
+     * @param instance The instance that changed
+     */
+    public void markUpdated(EffectGroupInstance instance) {
+        dirtyGroups.add(instance.getType());
     }
 }
@@ -1,19 +1,20 @@
 package wbs.particleeffects;
 
-import org.bukkit.Bukkit;
-import org.bukkit.Color;
-import org.bukkit.Material;
+import org.bukkit.Location;
 import org.bukkit.Particle;
-import org.bukkit.block.data.BlockData;
 import org.bukkit.configuration.ConfigurationSection;
 
-import org.bukkit.inventory.ItemStack;
-import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
+import org.jetbrains.annotations.Nullable;
 import wbs.particleeffects.instance.EffectGroupInstance;
-import wbs.utils.exceptions.InvalidConfigurationException;
-import wbs.utils.util.WbsColours;
-import wbs.utils.util.WbsEnums;
+import wbs.particleeffects.profile.EffectStats;
+import wbs.particleeffects.render.DustPalette;
+import wbs.particleeffects.render.FrameRecorder;
+import wbs.particleeffects.render.GeometryWorkers;
+import wbs.particleeffects.render.ParticleDispatcher;
+import wbs.particleeffects.render.ParticleFrame;
+import wbs.particleeffects.scheduler.LodLimits;
 import wbs.utils.util.configuration.NumProvider;
 import wbs.utils.util.configuration.VectorProvider;
 import wbs.utils.util.configuration.WbsConfigReader;
@@ -21,93 +22,94 @@ import wbs.utils.util.particles.WbsParticleEffect;
 
 public class PersistentEffect {
 
+    /**
+     * When an effect plays. Transitions only apply to ambient instances;
+     * every other kind of instance plays every effect as {@link #ALWAYS}.
+     */
+    public enum Trigger {
+        /** Play every interval to everyone in the region */
+        ALWAYS,
+        /** Play once to players who entered the region since the last run */
+        ENTER,
+        /** Play once to players who left the region since the last run */
+        LEAVE
+    }
+
     private final WbsParticleEffects plugin;
+    private final EffectTemplate template;
 
     public int interval; // In ticks
     public Particle particle;
-    private final WbsParticleEffect effect;
     private final EffectGroupInstance parent;
     private final VectorProvider offset;
 
+    private long lastRunTick = -1;
+
+    private final EffectStats stats = new EffectStats();
+    // Players sent to during the current run. Broadcasts that bypass the dispatcher aren't counted.
+    private int playersTargeted;
+
+    // Only set when the template's shape doesn't repeat, so this instance can't share it
+    @Nullable
+    private final WbsParticleEffect effect;
+    private final int baseAmount;
+    private static final FrameRecorder recorder = new FrameRecorder();
+    private long sharedStep = -1;
+    // The next run's build, in progress on a worker. The effect is the worker's until it's collected.
+    @Nullable
+    private GeometryWorkers.PendingFrame nextFrame;
+
+    // Runs owed at the current level of detail; a run is skipped whenever this is below 1
+    private double lodCredit = 1;
+    private ParticleFrame currentFrame; // Null when playing the effect directly
+    private ParticleFrame liveFrame; // The last live build, recorded for the dispatcher
+
     private Object data; // For particles requiring data
 
-    private boolean rainbow = false; // Only used when particle is redstone
     private NumProvider rainbowSpeed = new NumProvider(1);
     private NumProvider size = new NumProvider(1);
     private VectorProvider rgbVector = new VectorProvider(255, 0, 0);
 
-    public PersistentEffect(EffectGroupInstance parent, ConfigurationSection section, ParticleEffectSettings settings, String directory) {
+    public PersistentEffect(EffectGroupInstance parent, EffectTemplate template, ParticleEffectSettings settings) {
         this.parent = parent;
+        this.template = template;
 
-        WbsConfigReader.requireNotNull(section, "interval", settings, directory);
-        interval = section.getInt("interval");
-
-        effect = WbsParticleEffect.buildParticleEffect(section, settings, directory);
+        String directory = template.getDirectory();
+        ConfigurationSection section = template.getSection();
 
-        WbsConfigReader.requireNotNull(section, "particle", settings, directory);
-        String particleString = section.getString("particle");
-        particle = WbsEnums.particleFromString(particleString);
+        interval = template.getInterval();
+        particle = template.getParticle();
 
-        if (particle == null) {
-            settings.logError("Invalid particle: " + particleString, directory + "/particle");
-            throw new InvalidConfigurationException();
+        if (template.isShared()) {
+            effect = null;
+            baseAmount = template.getGeometry().getAmount();
+        } else {
+            effect = template.createEffect(settings);
+            baseAmount = effect.getAmount();
         }
 
-        Class<?> clazz = particle.getDataType();
-        if (clazz != Void.class) {
-            if (clazz == Particle.DustOptions.class) {
-                if (section.get("rainbow") != null) {
-                    rainbow = section.getBoolean("rainbow");
+        if (template.hasDustData()) {
+            if (template.isRainbow()) {
+                if (section.get("rainbowSpeed") != null) {
+                    rainbowSpeed = new NumProvider(section, "rainbowSpeed", settings, directory + "/rainbowSpeed");
                 } else {
-                    rainbow = false;
+                    rainbowSpeed = new NumProvider(1);
                 }
+            } else {
+                ConfigurationSection colourSection = WbsConfigReader.getRequiredSection(section, "colour", settings, directory);
+                rgbVector = new VectorProvider(colourSection, settings, directory + "/colour");
+            }
 
-                if (rainbow) {
-                    if (section.get("rainbowSpeed") != null) {
-                        rainbowSpeed = new NumProvider(section, "rainbowSpeed", settings, directory + "/rainbowSpeed");
-                    } else {
-                        rainbowSpeed = new NumProvider(1);
-                    }
-                } else {
-                    ConfigurationSection colourSection = WbsConfigReader.getRequiredSection(section, "colour", settings, directory);
-                    rgbVector = new VectorProvider(colourSection, settings, directory + "/colour");
-                }
-
-                WbsConfigReader.requireNotNull(section, "size", settings, directory + "/size");
-                size = new NumProvider(section, "size", settings, directory + "/size");
-
-                data = new Particle.DustOptions(
-                        Color.fromRGB(
-                                (int) rgbVector.getX(),
-                                (int) rgbVector.getY(),
-                                (int) rgbVector.getZ()
-                        ), (float) size.val()
-                );
-                // bool rainbow
-                // if not rainbow, rgb vector
-                // if rainbow, rainbowSpeed
-                // number size (0-2)
-            } else if (clazz == BlockData.class) {
-                WbsConfigReader.requireNotNull(section, "blockType", settings, directory);
-                Material blockType = WbsEnums.materialFromString(section.getString("blockType"));
-
-                if (!blockType.isBlock()) {
-                    throw new InvalidConfigurationException();
-                }
-
-                data = Bukkit.createBlockData(blockType);
-            } else if (clazz == ItemStack.class) {
-                WbsConfigReader.requireNotNull(section, "itemType", settings, directory);
-                Material blockType = WbsEnums.materialFromString(section.getString("itemType"));
-
-                if (!blockType.isItem()) {
-                    throw new InvalidConfigurationException();
-                }
+            WbsConfigReader.requireNotNull(section, "size", settings, directory + "/size");
+            size = new NumProvider(section, "size", settings, directory + "/size");
 
-                data = Bukkit.createBlockData(blockType);
-            }
+            updateColour();
+        } else {
+            data = template.getData();
+        }
 
-            effect.setOptions(clazz.cast(data));
+        if (effect != null && data != null) {
+            effect.setOptions(data);
         }
 
         plugin = settings.getPlugin();
@@ -120,76 +122,220 @@ public class PersistentEffect {
         }
     }
 
-    public void writeToConfig(ConfigurationSection section, String path) {
-        effect.writeToConfig(section, path);
-        section.set(path + ".interval", interval);
+    /**
+     * Register this effect with the plugin's {@link wbs.particleeffects.scheduler.EffectScheduler}
+     * @return True if the effect was started, false if it was already running.
+     */
+    public boolean start() {
+        return plugin.scheduler.register(this);
+    }
+
+    public PersistentEffect stop() {
+        plugin.scheduler.unregister(this);
+
+        return this;
     }
 
+    /**
+     * Refresh providers and play this effect once. Called by the scheduler every {@link #interval} ticks.
+     * @return An estimate of the number of particles sent.
+     */
+    public int tick() {
+        long tick = plugin.scheduler.getCurrentTick();
+        if (parent.isSuspended() || !parent.hasViewers()) {
+            stats.recordSkip(tick);
+            parent.getStats().recordSkip(tick);
+            return 0;
+        }
 
-    private int runnableId = -1;
+        double amountScale = 1;
+        LodLimits lodLimits = parent.getType().getLodLimits();
+        if (plugin.scheduler.getLod().isEnabled() && lodLimits.isEnabled()) {
+            double level = plugin.scheduler.getLod().getLevel(parent);
+
+            // Stretch the interval by skipping a share of runs, so fractional stretches are smooth too
+            lodCredit += 1 / lodLimits.getIntervalScale(level);
+            if (lodCredit < 1) {
+                stats.recordSkip(tick);
+                parent.getStats().recordSkip(tick);
+                return 0;
+            }
+            lodCredit -= 1;
 
-    public boolean start() {
-        if (runnableId != -1) {
-            return false;
+            amountScale = lodLimits.getAmountScale(level);
         }
 
-        runnableId = new BukkitRunnable() {
-            @Override
-            public void run() {
-                offset.refresh();
-
-                if (data instanceof Particle.DustOptions) {
-                    rainbowSpeed.refresh();
-                    size.refresh();
-                    rgbVector.refresh();
-
-                    if (rainbow) {
-                        cycleRainbow();
-                    } else {
-                        data = new Particle.DustOptions(
-                                Color.fromRGB(
-                                        (int) rgbVector.getX(),
-                                        (int) rgbVector.getY(),
-                                        (int) rgbVector.getZ()
-                                ), (float) size.val()
-                        );
-                    }
-                    effect.setOptions(data);
+        long buildStart = System.nanoTime();
+
+        offset.refresh();
+
+        if (data instanceof Particle.DustOptions) {
+            rainbowSpeed.refresh();
+            size.refresh();
+            rgbVector.refresh();
+
+            Object previousData = data;
+            if (template.isRainbow()) {
+                cycleRainbow();
+            } else {
+                updateColour();
+            }
+
+            // Options are shared from DustPalette, so this only changes when the colour or size does.
+            // Built-ahead frames take their data at playback, so the effect only needs it when played directly.
+            if (effect != null && nextFrame == null && data != previousData) {
+                effect.setOptions(data);
+            }
+        }
+
+        if (effect == null) {
+            sharedStep = template.nextStep(sharedStep);
+            // The shared frame is the group's, so thin a copy rather than building with fewer particles
+            currentFrame = template.getFrame(sharedStep, parent.getWorld(), amountScale);
+        } else {
+            int amount = Math.max(1, (int) Math.round(baseAmount * amountScale));
+            GeometryWorkers workers = plugin.geometry;
+
+            if (nextFrame != null) {
+                // Built last run, with last run's level of detail
+                liveFrame = nextFrame.collect();
+                nextFrame = null;
+            } else {
+                if (amount != effect.getAmount()) {
+                    effect.setAmount(amount);
                 }
 
                 effect.build();
-                parent.runEffect(PersistentEffect.this);
+
+                if (workers.isEnabled() || plugin.scheduler.getDispatcher().isEnabled()) {
+                    liveFrame = recorder.record(effect, particle, parent.getWorld());
+                } else {
+                    liveFrame = null;
+                }
+            }
+            currentFrame = liveFrame;
+
+            if (workers.isEnabled()) {
+                nextFrame = workers.submit(effect, amount, particle, parent.getWorld());
             }
-        }.runTaskTimer(plugin, 1, interval).getTaskId();
+        }
+
+        long playStart = System.nanoTime();
+        playersTargeted = 0;
+
+        int plays = parent.runEffect(this);
+
+        long playEnd = System.nanoTime();
+
+        lastRunTick = tick;
 
-        return true;
+        int particlesPerPlay = currentFrame != null ? currentFrame.size() : getEffect().getAmount();
+        int particles = plays * particlesPerPlay;
+
+        stats.recordRun(tick, playStart - buildStart, playEnd - playStart, particles, playersTargeted);
+        parent.getStats().recordRun(tick, playStart - buildStart, playEnd - playStart, particles, playersTargeted);
+
+        return particles;
     }
 
-    public PersistentEffect stop() {
-        if (runnableId != -1) {
-            Bukkit.getScheduler().cancelTask(runnableId);
-            runnableId = -1;
+    /**
+     * Play this effect as it was last built.
+     * @param loc Where to play the effect
+     * @param player The player to show the effect to, or null to show everyone nearby
+     */
+    public void play(Location loc, @Nullable Player player) {
+        ParticleDispatcher dispatcher = plugin.scheduler.getDispatcher();
+
+        boolean force = template.isForced();
+        if (player != null) {
+            playersTargeted++;
         }
 
-        return this;
+        if (currentFrame != null && dispatcher.isEnabled()) {
+            if (player == null) {
+                playersTargeted += dispatcher.queueNearby(currentFrame, particle, data, loc, force);
+            } else {
+                dispatcher.queue(player, currentFrame, particle, data, loc);
+            }
+        } else if (currentFrame != null) {
+            if (player == null) {
+                currentFrame.play(particle, data, loc, force);
+            } else {
+                currentFrame.play(particle, data, loc, player);
+            }
+        } else if (player == null) {
+            getEffect().play(particle, loc);
+        } else {
+            getEffect().play(particle, loc, player);
+        }
+    }
+
+    // for DustOptions data with a fixed colour
+
+    private int lastRGB = -1;
+    private float lastSize = -1;
+
+    private void updateColour() {
+        int rgb = DustPalette.toRGB(rgbVector.getX(), rgbVector.getY(), rgbVector.getZ());
+        float roundedSize = DustPalette.roundSize(size.val());
+
+        if (rgb != lastRGB || roundedSize != lastSize) {
+            lastRGB = rgb;
+            lastSize = roundedSize;
+            data = DustPalette.get(rgb, roundedSize);
+        }
     }
 
     // for DustOptions data rainbow cycling
 
     private float age = 0;
+    private DustPalette.RainbowTable rainbowTable;
 
     public void cycleRainbow() {
         if (data instanceof Particle.DustOptions) {
             age += 0.002 * interval * rainbowSpeed.val();
+            // Hue repeats every whole number, so keep age small to keep it precise
+            age -= Math.floor(age);
 
-            Color colour = WbsColours.fromHSB(age, 1, 1);
+            float roundedSize = DustPalette.roundSize(size.val());
+            if (rainbowTable == null || rainbowTable.getSize() != roundedSize) {
+                rainbowTable = DustPalette.getRainbow(roundedSize);
+            }
 
-            data = new Particle.DustOptions(colour, (float) size.val());
+            data = rainbowTable.get(age);
         }
     }
 
+    public EffectGroupInstance getParent() {
+        return parent;
+    }
+
+    /**
+     * @return The particle effect this plays, which is shared with the rest of the group when the template's is
+     */
     public WbsParticleEffect getEffect() {
-        return effect;
+        if (effect != null) {
+            return effect;
+        }
+        return template.getGeometry();
+    }
+
+    /**
+     * @return How many particles this effect sends per play at full detail
+     */
+    public int getEstimatedParticles() {
+        return baseAmount;
+    }
+
+    public EffectTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return Recent costs of this effect on its own instance
+     */
+    public EffectStats getStats() {
+        return stats;
     }
     public Particle getParticle() {
         return particle;
@@ -198,4 +344,15 @@ public class PersistentEffect {
     public VectorProvider getOffset() {
         return offset;
     }
+
+    public Trigger getTrigger() {
+        return template.getTrigger();
+    }
+
+    /**
+     * @return The scheduler tick this effect last ran on, or -1 if it hasn't run yet.
+     */
+    public long getLastRunTick() {
+        return lastRunTick;
+    }
 }
@@ -1,16 +1,28 @@
 package wbs.particleeffects;
 
+import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
+import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.jetbrains.annotations.NotNull;
 import wbs.particleeffects.instance.AmbientEffectGroupInstance;
+import wbs.particleeffects.instance.AttachedEffectGroupInstance;
 import wbs.particleeffects.instance.EffectGroupInstance;
+import wbs.particleeffects.profile.EffectStats;
+import wbs.particleeffects.render.BakeRegistry;
+import wbs.particleeffects.render.FrameBake;
+import wbs.particleeffects.render.GeometryWorkers;
+import wbs.particleeffects.scheduler.EffectScheduler;
+import wbs.particleeffects.scheduler.LodController;
+import wbs.particleeffects.scheduler.TickBudget;
+import wbs.particleeffects.session.PlayerData;
+import wbs.particleeffects.session.PlayerSessions;
 import wbs.utils.util.plugin.WbsMessenger;
 
 import java.util.*;
@@ -126,7 +138,7 @@ public class PersistentEffectCommand extends WbsMessenger implements CommandExec
                         }
 
                         Player player = (Player) sender;
-                        PlayerData data = new PlayerData(player);
+                        PlayerData data = plugin.sessions.get(player);
 
                         // TODO: Integrate with world edit for region selection?
                         data.selectingFor = (AmbientEffectGroupInstance) instance;
@@ -136,6 +148,11 @@ public class PersistentEffectCommand extends WbsMessenger implements CommandExec
                     }
                     return true;
                 case "highlight":
+                    if (!(sender instanceof Player)) {
+                        sendMessage("This command is only usable by players", sender);
+                        return true;
+                    }
+
                     if (checkPermission(sender, PERMISSION + ".highlight")) {
                         if (length == 1) {
                             sendMessage("Usage: &h/" + label + " " + args[0] + " <instance>", sender);
@@ -153,7 +170,7 @@ public class PersistentEffectCommand extends WbsMessenger implements CommandExec
                             return true;
                         }
 
-                        boolean enabled = ((AmbientEffectGroupInstance) instance).highlightFor((Player) sender, plugin);
+                        boolean enabled = plugin.highlights.toggle((Player) sender, (AmbientEffectGroupInstance) instance);
 
                         if (enabled) {
                             sendMessage(args[1] + " has been highlighted. Repeat this command to hide it.", sender);
@@ -261,9 +278,10 @@ public class PersistentEffectCommand extends WbsMessenger implements CommandExec
                         if (moveInstance.isLocked()) {
                             sendMessage("This effect is locked. To move it, unlock it in &h" +
                                     plugin.settings.getFileFor(moveInstance.getType().getId()), sender);
-                        } else {
-                            moveInstance.move(((Player)sender).getLocation());
+                        } else if (moveInstance.move(((Player)sender).getLocation())) {
                             sendMessage("&h" + moveInstance.getId() + "&r was moved to your location!", sender);
+                        } else {
+                            sendMessage("&w" + moveInstance.getId() + " can't be moved.", sender);
                         }
                     }
                     return true;
@@ -295,12 +313,24 @@ public class PersistentEffectCommand extends WbsMessenger implements CommandExec
                     if (checkPermission(sender, PERMISSION + ".save")) {
                         plugin.settings.saveAllInstances(false);
 
-                        sendMessage("&hSaved changes!", sender);
+                        sendMessage("&hSaving changes...", sender);
                     }
                     return true;
                 case "reload":
                     if (checkPermission(sender, PERMISSION + ".reload")) {
 
+                        if (length >= 2 && args[1].equalsIgnoreCase("changed")) {
+                            int changed = plugin.settings.reloadChanged();
+
+                            errors = plugin.settings.getErrors();
+                            if (errors.isEmpty()) {
+                                sendMessage("&hReloaded " + changed + " changed files.", sender);
+                            } else {
+                                sendMessage("&wThere were " + errors.size() + " config errors. Do &7/" + label + " errors&w to see them.", sender);
+                            }
+                            return true;
+                        }
+
                         plugin.settings.reload();
 
                         errors = plugin.settings.getErrors();
@@ -312,6 +342,271 @@ public class PersistentEffectCommand extends WbsMessenger implements CommandExec
                         }
                     }
                     return true;
+                case "budget":
+                    if (checkPermission(sender, PERMISSION + ".budget")) {
+                        TickBudget budget = plugin.scheduler.getBudget();
+
+                        if (length >= 2 && args[1].equalsIgnoreCase("reset")) {
+                            budget.resetStats();
+                            sendMessage("Throttling stats reset.", sender);
+                            return true;
+                        }
+
+                        if (!budget.isLimited()) {
+                            sendMessage("There is no tick budget set. Set one in &hconfig.yml&r under &htick-budget&r.", sender);
+                            return true;
+                        }
+
+                        String limits = "";
+                        if (budget.getMaxParticles() > 0) {
+                            limits += "&h" + budget.getMaxParticles() + "&r particles";
+                        }
+                        if (budget.getMaxMillis() > 0) {
+                            if (!limits.isEmpty()) {
+                                limits += " or ";
+                            }
+                            limits += "&h" + budget.getMaxMillis() + "ms";
+                        }
+                        sendMessage("Tick budget: " + limits + "&r per tick.", sender);
+
+                        if (budget.getLastThrottledTick() == -1) {
+                            sendMessage("Effects have not been throttled.", sender);
+                        } else {
+                            long ticksAgo = plugin.scheduler.getCurrentTick() - budget.getLastThrottledTick();
+                            sendMessage("&wEffects were throttled on &h" + budget.getThrottledTicks() + "&w ticks, " +
+                                    "deferring &h" + budget.getDeferredRuns() + "&w runs. Last throttled &h" + ticksAgo + "&w ticks ago.", sender);
+                            sendMessage("Effects waiting for budget: &h" + budget.getBacklog(), sender);
+                        }
+                    }
+                    return true;
+                case "bakes":
+                    if (checkPermission(sender, PERMISSION + ".bakes")) {
+                        BakeRegistry bakes = plugin.bakes;
+                        List<FrameBake> bakeList = bakes.getBakes();
+
+                        if (bakeList.isEmpty()) {
+                            sendMessage("No effects are baked. Set &hbake: true&r on an effect to bake it.", sender);
+                            return true;
+                        }
+
+                        sendMessage("Baked effects are using &h" + formatKilobytes(bakes.getMemoryUsed()) + "&r of &h"
+                                + formatKilobytes(bakes.getMemoryLimit()) + "&r:", sender);
+                        for (FrameBake bake : bakeList) {
+                            if (bake.isAbandoned()) {
+                                sendMessage("&w" + bake.getName() + ": ran out of memory, building live", sender);
+                            } else {
+                                sendMessage("&h" + bake.getName() + "&r: " + bake.getFramesBaked() + "/" + bake.getCycleLength()
+                                        + " frames, &h" + formatKilobytes(bake.getMemoryFootprint()), sender);
+                            }
+                        }
+                    }
+                    return true;
+                case "profile":
+                    if (checkPermission(sender, PERMISSION + ".profile")) {
+                        int limit = 10;
+                        // Accept both "profile 5" and "profile top 5"
+                        String limitArg = null;
+                        if (length >= 2 && !args[1].equalsIgnoreCase("top")) {
+                            limitArg = args[1];
+                        } else if (length >= 3) {
+                            limitArg = args[2];
+                        }
+
+                        if (limitArg != null) {
+                            try {
+                                limit = Integer.parseInt(limitArg);
+                            } catch (NumberFormatException e) {
+                                sendMessage("Invalid number: &h" + limitArg, sender);
+                                return true;
+                            }
+
+                            if (limit < 1) {
+                                sendMessage("Usage: &h/" + label + " profile [top] [N]", sender);
+                                return true;
+                            }
+                        }
+
+                        List<EffectGroupInstance> costliest = plugin.profiler.getCostliest(plugin.settings.getAllInstances().values(), limit);
+                        if (costliest.isEmpty()) {
+                            sendMessage("No instances have run in the last " + EffectStats.WINDOW_SECONDS + " seconds.", sender);
+                            return true;
+                        }
+
+                        LodController lod = plugin.scheduler.getLod();
+                        if (lod.isEnabled()) {
+                            sendMessage("Ticks are taking &h" + String.format("%.1f", lod.getSmoothedMspt()) + "ms&r; "
+                                    + "detail is &h" + Math.round(lod.getPressure() * 100) + "%&r of the way to each group's minimum.", sender);
+                        }
+
+                        GeometryWorkers workers = plugin.geometry;
+                        if (workers.isEnabled()) {
+                            sendMessage("Building geometry on &h" + workers.getThreads() + "&r threads; &h"
+                                    + workers.getStalls() + "&r of &h" + workers.getBuilds() + "&r builds weren't ready in time.", sender);
+                        }
+
+                        long tick = plugin.scheduler.getCurrentTick();
+                        sendMessage("Costliest instances over the last &h" + EffectStats.WINDOW_SECONDS + "&r seconds:", sender);
+                        for (EffectGroupInstance instance : costliest) {
+                            EffectStats stats = instance.getStats();
+                            long runs = stats.getRuns(tick);
+                            double playersPerRun = runs == 0 ? 0 : (double) stats.getPlayers(tick) / runs;
+
+                            sendMessage("&h" + instance.getId() + "&r: &h" + formatMillisPerSecond(stats.getTotalNanos(tick)) + "&r ("
+                                    + "build " + formatMillisPerSecond(stats.getBuildNanos(tick)) + ", "
+                                    + "play " + formatMillisPerSecond(stats.getPlayNanos(tick)) + "), "
+                                    + "&h" + stats.getParticles(tick) / EffectStats.WINDOW_SECONDS + "&r particles/s, "
+                                    + String.format("%.1f", playersPerRun) + " players per run, "
+                                    + stats.getSkipped(tick) + " skipped", sender);
+                        }
+                    }
+                    return true;
+                case "slots":
+                    if (checkPermission(sender, PERMISSION + ".slots")) {
+                        EffectScheduler scheduler = plugin.scheduler;
+
+                        if (length >= 2 && args[1].equalsIgnoreCase("rebalance")) {
+                            scheduler.rebalance();
+                            sendMessage("Reassigned every effect to the least loaded slot.", sender);
+                            return true;
+                        }
+
+                        if (scheduler.getIntervals().isEmpty()) {
+                            sendMessage("No effects are running.", sender);
+                            return true;
+                        }
+
+                        if (length >= 2) {
+                            int interval;
+                            try {
+                                interval = Integer.parseInt(args[1]);
+                            } catch (NumberFormatException e) {
+                                sendMessage("Usage: &h/" + label + " slots [interval|rebalance]", sender);
+                                return true;
+                            }
+
+                            int[] counts = scheduler.getSlotCounts(interval);
+                            double[] costs = scheduler.getSlotCosts(interval);
+                            if (counts == null || costs == null) {
+                                sendMessage("No effects run every &h" + interval + "&r ticks.", sender);
+                                return true;
+                            }
+
+                            sendMessage("Slots for effects every &h" + interval + "&r ticks:", sender);
+                            for (int slot = 0; slot < counts.length; slot++) {
+                                sendMessage("&h" + slot + "&r: " + counts[slot] + " effects, &h" + formatMillis(costs[slot]), sender);
+                            }
+                            return true;
+                        }
+
+                        double[] upcoming = scheduler.getUpcomingCosts(scheduler.getBalanceHorizon());
+                        double total = 0;
+                        double peak = 0;
+                        for (double cost : upcoming) {
+                            total += cost;
+                            peak = Math.max(peak, cost);
+                        }
+                        sendMessage("Estimated effect time per tick over the next &h" + upcoming.length + "&r ticks: &h"
+                                + formatMillis(total / upcoming.length) + "&r average, &h" + formatMillis(peak) + "&r peak.", sender);
+
+                        for (int interval : scheduler.getIntervals()) {
+                            int[] counts = scheduler.getSlotCounts(interval);
+                            double[] costs = scheduler.getSlotCosts(interval);
+                            if (counts == null || costs == null) {
+                                continue;
+                            }
+
+                            int effects = 0;
+                            double lightest = Double.MAX_VALUE;
+                            double heaviest = 0;
+                            for (int slot = 0; slot < counts.length; slot++) {
+                                effects += counts[slot];
+                                lightest = Math.min(lightest, costs[slot]);
+                                heaviest = Math.max(heaviest, costs[slot]);
+                            }
+
+                            sendMessage("Every &h" + interval + "&r ticks: &h" + effects + "&r effects, slots take &h"
+                                    + formatMillis(lightest) + "&r to &h" + formatMillis(heaviest), sender);
+                        }
+                    }
+                    return true;
+                case "attach":
+                case "detach":
+                    if (checkPermission(sender, PERMISSION + ".attach")) {
+                        if (length == 1 || (length == 2 && !(sender instanceof Player))) {
+                            sendMessage("Usage: &h/" + label + " " + args[0] + " <instance> <player|uuid>", sender);
+                            return true;
+                        }
+
+                        EffectGroupInstance instance = plugin.settings.getEffectGroupInstance(args[1]);
+                        if (instance == null) {
+                            sendMessage("Instance not found: &w" + args[1], sender);
+                            return true;
+                        }
+
+                        if (!(instance instanceof AttachedEffectGroupInstance)) {
+                            sendMessage("&w" + args[1] + "&r is not an attached instance.", sender);
+                            return true;
+                        }
+                        AttachedEffectGroupInstance attachedInstance = (AttachedEffectGroupInstance) instance;
+
+                        if (attachedInstance.isLocked()) {
+                            sendMessage("This effect is locked. To change what it follows, unlock it in &h" +
+                                    plugin.settings.getFileFor(attachedInstance.getType().getId()), sender);
+                            return true;
+                        }
+
+                        Entity target;
+                        if (length == 2) {
+                            target = (Player) sender;
+                        } else {
+                            target = Bukkit.getPlayer(args[2]);
+                            if (target == null) {
+                                try {
+                                    UUID uuid = UUID.fromString(args[2]);
+                                    if (args[0].equalsIgnoreCase("detach")) {
+                                        // Detaching doesn't need the target to be loaded
+                                        if (attachedInstance.detach(uuid)) {
+                                            sendMessage("&h" + args[2] + "&r was detached from &h" + instance.getId(), sender);
+                                        } else {
+                                            sendMessage("&w" + args[2] + " wasn't attached to " + instance.getId() + ".", sender);
+                                        }
+                                        return true;
+                                    }
+                                    target = Bukkit.getEntity(uuid);
+                                } catch (IllegalArgumentException ignored) {}
+                            }
+
+                            if (target == null) {
+                                sendMessage("No online player or loaded entity found: &w" + args[2], sender);
+                                return true;
+                            }
+                        }
+
+                        String targetName = target instanceof Player ? target.getName() : target.getUniqueId().toString();
+                        if (args[0].equalsIgnoreCase("attach")) {
+                            if (attachedInstance.attach(target)) {
+                                sendMessage("&h" + instance.getId() + "&r is now following &h" + targetName, sender);
+                            } else {
+                                sendMessage("&w" + instance.getId() + " was already following " + targetName + ".", sender);
+                            }
+                        } else {
+                            if (attachedInstance.detach(target.getUniqueId())) {
+                                sendMessage("&h" + targetName + "&r was detached from &h" + instance.getId(), sender);
+                            } else {
+                                sendMessage("&w" + targetName + " wasn't attached to " + instance.getId() + ".", sender);
+                            }
+                        }
+                    }
+                    return true;
+                case "sessions":
+                    if (checkPermission(sender, PERMISSION + ".sessions")) {
+                        PlayerSessions sessions = plugin.sessions;
+                        sendMessage("Holding state for &h" + sessions.size() + "&r players (&h"
+                                + Bukkit.getOnlinePlayers().size() + "&r online), with &h"
+                                + sessions.getHighlightCount() + "&r highlights showing &h"
+                                + plugin.highlights.getCachedOutlineCount() + "&r outlines.", sender);
+                    }
+                    return true;
                 case "errors":
                     if (checkPermission(sender, PERMISSION + ".reload")) {
                         errors = plugin.settings.getErrors();
@@ -355,6 +650,18 @@ public class PersistentEffectCommand extends WbsMessenger implements CommandExec
         return true;
     }
 
+    private String formatKilobytes(long bytes) {
+        return String.format("%.1fKB", bytes / 1024.0);
+    }
+
+    private String formatMillis(double nanos) {
+        return String.format("%.2fms", nanos / 1_000_000.0);
+    }
+
+    private String formatMillisPerSecond(long windowNanos) {
+        return String.format("%.2fms/s", windowNanos / 1_000_000.0 / EffectStats.WINDOW_SECONDS);
+    }
+
     public List<String> onTabComplete(CommandSender sender, @NotNull Command command, @NotNull String alias, String[] args) {
         List<String> choices = new LinkedList<>();
 
@@ -370,6 +677,25 @@ public class PersistentEffectCommand extends WbsMessenger implements CommandExec
                         choices.add("reload");
                         choices.add("errors");
                     }
+                    if (sender.hasPermission(PERMISSION + ".budget")) {
+                        choices.add("budget");
+                    }
+                    if (sender.hasPermission(PERMISSION + ".bakes")) {
+                        choices.add("bakes");
+                    }
+                    if (sender.hasPermission(PERMISSION + ".profile")) {
+                        choices.add("profile");
+                    }
+                    if (sender.hasPermission(PERMISSION + ".slots")) {
+                        choices.add("slots");
+                    }
+                    if (sender.hasPermission(PERMISSION + ".sessions")) {
+                        choices.add("sessions");
+                    }
+                    if (sender.hasPermission(PERMISSION + ".attach")) {
+                        choices.add("attach");
+                        choices.add("detach");
+                    }
                     if (sender.hasPermission(PERMISSION + ".list")) {
                         choices.add("list");
                         choices.add("listgroups");
@@ -424,8 +750,12 @@ public class PersistentEffectCommand extends WbsMessenger implements CommandExec
                         case "list":
                         case "listgroup":
                         case "listgroups":
-                        case "reload":
                             return choices;
+                        case "reload":
+                            if (sender.hasPermission(PERMISSION + ".reload")) {
+                                choices.add("changed");
+                            }
+                            break;
                         case "create":
                             if (sender.hasPermission(PERMISSION + ".create")) {
                                 choices.addAll(plugin.settings.getAllGroups().keySet());
@@ -442,6 +772,34 @@ public class PersistentEffectCommand extends WbsMessenger implements CommandExec
                                 choices.addAll(plugin.settings.getPendingDeletion().keySet());
                             }
                             break;
+                        case "budget":
+                            if (sender.hasPermission(PERMISSION + ".budget")) {
+                                choices.add("reset");
+                            }
+                            break;
+                        case "profile":
+                            if (sender.hasPermission(PERMISSION + ".profile")) {
+                                choices.add("top");
+                            }
+                            break;
+                        case "slots":
+                            if (sender.hasPermission(PERMISSION + ".slots")) {
+                                choices.add("rebalance");
+                                for (int interval : plugin.scheduler.getIntervals()) {
+                                    choices.add(String.valueOf(interval));
+                                }
+                            }
+                            break;
+                        case "attach":
+                        case "detach":
+                            if (sender.hasPermission(PERMISSION + ".attach")) {
+                                for (EffectGroupInstance instance : plugin.settings.getAllInstances().values()) {
+                                    if (instance instanceof AttachedEffectGroupInstance) {
+                                        choices.add(instance.getId());
+                                    }
+                                }
+                            }
+                            break;
                         case "move":
                         case "movehere":
                             if (sender.hasPermission(PERMISSION + ".move")) {
@@ -449,6 +807,17 @@ public class PersistentEffectCommand extends WbsMessenger implements CommandExec
                             }
                     }
                     break;
+                case 3:
+                    switch (args[0].toLowerCase()) {
+                        case "attach":
+                        case "detach":
+                            if (sender.hasPermission(PERMISSION + ".attach")) {
+                                for (Player player : Bukkit.getOnlinePlayers()) {
+                                    choices.add(player.getName());
+                                }
+                            }
+                    }
+                    break;
                 default:
                     return choices;
             }
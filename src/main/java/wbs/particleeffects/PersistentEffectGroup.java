@@ -4,14 +4,21 @@ import org.bukkit.configuration.ConfigurationSection;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import wbs.particleeffects.instance.EffectGroupInstance;
+import wbs.particleeffects.scheduler.LodLimits;
 import wbs.utils.util.configuration.WbsConfigReader;
 
+import java.util.*;
+
 public class PersistentEffectGroup {
 
     private final String id;
     private String creator;
     private String description;
 
+    private final Set<EffectGroupInstance> instances = new LinkedHashSet<>();
+    private final List<EffectTemplate> templates = new ArrayList<>();
+    private final LodLimits lodLimits;
+
     public PersistentEffectGroup(@NotNull String id, @NotNull ConfigurationSection section, @NotNull ParticleEffectSettings settings, @Nullable String directory) {
         this.id = id;
 
@@ -24,17 +31,65 @@ public class PersistentEffectGroup {
         assert effectsSection != null;
         assert instanceSection != null;
 
+        lodLimits = LodLimits.fromConfig(section.getConfigurationSection("lod"), settings, directory + "/lod");
+
+        // Parse each effect once, then give every instance its own runtime state from them
+        for (String effectKey : effectsSection.getKeys(false)) {
+            ConfigurationSection effectSection = effectsSection.getConfigurationSection(effectKey);
+            assert effectSection != null;
+            templates.add(new EffectTemplate(this, effectSection, settings, directory + "/effects/" + effectKey));
+        }
+
         for (String key : instanceSection.getKeys(false)) {
             ConfigurationSection effectSection = instanceSection.getConfigurationSection(key);
             assert effectSection != null;
             EffectGroupInstance instance = EffectGroupInstance.buildInstance(this, effectSection, settings, directory + "/instances/" + key);
-            settings.addInstance(instance, directory);
+            instance.createEffects(settings);
 
-            instance.readEffectsFromConfig(effectsSection, settings, directory);
+            settings.addInstance(instance, directory);
         }
     }
 
     public String getId() {
         return id;
     }
+
+    /**
+     * @return The live instances of this group, kept up to date by {@link ParticleEffectSettings}
+     */
+    public Set<EffectGroupInstance> getInstances() {
+        return Collections.unmodifiableSet(instances);
+    }
+
+    /**
+     * @return The parsed effects every instance of this group plays
+     */
+    public List<EffectTemplate> getTemplates() {
+        return Collections.unmodifiableList(templates);
+    }
+
+    /**
+     * @return How far this group's effects may lose detail under load or at a distance
+     */
+    public LodLimits getLodLimits() {
+        return lodLimits;
+    }
+
+    /**
+     * Free anything held outside the group, such as bakes, and forget its instances. Call when discarding the group.
+     */
+    public void release() {
+        for (EffectTemplate template : templates) {
+            template.release();
+        }
+        instances.clear();
+    }
+
+    void addInstance(EffectGroupInstance instance) {
+        instances.add(instance);
+    }
+
+    void removeInstance(EffectGroupInstance instance) {
+        instances.remove(instance);
+    }
 }
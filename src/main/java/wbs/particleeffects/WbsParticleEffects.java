@@ -2,6 +2,13 @@ package wbs.particleeffects;
 
 import org.bukkit.Bukkit;
 import org.bukkit.plugin.PluginManager;
+import wbs.particleeffects.profile.EffectProfiler;
+import wbs.particleeffects.region.ChunkInstanceIndex;
+import wbs.particleeffects.render.BakeRegistry;
+import wbs.particleeffects.render.GeometryWorkers;
+import wbs.particleeffects.render.HighlightService;
+import wbs.particleeffects.scheduler.EffectScheduler;
+import wbs.particleeffects.session.PlayerSessions;
 import wbs.utils.util.plugin.WbsPlugin;
 
 import java.util.Objects;
@@ -9,10 +16,18 @@ import java.util.Objects;
 public class WbsParticleEffects extends WbsPlugin {
 
     public ParticleEffectSettings settings;
+    public EffectScheduler scheduler;
+    public ChunkInstanceIndex chunkIndex;
+    public BakeRegistry bakes;
+    public GeometryWorkers geometry;
+    public EffectProfiler profiler;
+    public PlayerSessions sessions;
+    public HighlightService highlights;
 
     @Override
     public void onEnable() {
-        settings = new ParticleEffectSettings(this);
+        createServices();
+        scheduler.start();
 
         settings.reload();
 
@@ -21,13 +36,36 @@ public class WbsParticleEffects extends WbsPlugin {
         PluginManager pm = Bukkit.getPluginManager();
 
         pm.registerEvents(new CoordSelectionListener(this), this);
+        pm.registerEvents(chunkIndex, this);
+        pm.registerEvents(sessions, this);
 
     //    settings.enableAllEffects();
     }
 
+    /**
+     * Create the services effects run on. Nothing is started, loaded or registered with the
+     * server here, so effects can also be loaded and driven without one.
+     */
+    public void createServices() {
+        scheduler = new EffectScheduler(this);
+        chunkIndex = new ChunkInstanceIndex();
+        bakes = new BakeRegistry();
+        geometry = new GeometryWorkers();
+        profiler = new EffectProfiler(this);
+        sessions = new PlayerSessions();
+        highlights = new HighlightService(this);
+
+        settings = new ParticleEffectSettings(this);
+    }
+
     @Override
     public void onDisable() {
         settings.saveAllInstances(false);
+        settings.shutdown();
         settings.disableAllEffects();
+        sessions.clear();
+        highlights.stop();
+        scheduler.stop();
+        geometry.shutdown();
     }
 }
@@ -2,25 +2,17 @@ package wbs.particleeffects.instance;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
-import org.bukkit.Particle;
 import org.bukkit.World;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
-import org.bukkit.plugin.Plugin;
-import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.util.Vector;
 import wbs.particleeffects.ParticleEffectSettings;
 import wbs.particleeffects.PersistentEffect;
 import wbs.particleeffects.PersistentEffectGroup;
 import wbs.utils.exceptions.InvalidConfigurationException;
 import wbs.utils.util.configuration.WbsConfigReader;
-import wbs.utils.util.particles.CuboidParticleEffect;
-import wbs.utils.util.particles.WbsParticleEffect;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
 
 public class AmbientEffectGroupInstance extends EffectGroupInstance {
 
@@ -31,12 +23,11 @@ public class AmbientEffectGroupInstance extends EffectGroupInstance {
 
     private EffectGroupInstance instance;
 
-    public AmbientEffectGroupInstance(PersistentEffectGroup type, String id, Location loc1, Location loc2, boolean enabled) {
-        super(type, id, enabled);
+    public AmbientEffectGroupInstance(PersistentEffectGroup type, String id, Location loc1, Location loc2, boolean enabled, ParticleEffectSettings settings) {
+        super(type, id, enabled, settings);
 
         world = loc1.getWorld();
-        pos1 = loc1.toVector();
-        pos2 = loc2.toVector();
+        setCorners(loc1.toVector(), loc2.toVector());
     }
 
     public AmbientEffectGroupInstance(PersistentEffectGroup type, ConfigurationSection section, ParticleEffectSettings settings, String directory) {
@@ -75,10 +66,7 @@ public class AmbientEffectGroupInstance extends EffectGroupInstance {
                 pos2Section.getDouble("z")
         );
 
-        Vector temp = pos1.clone();
-
-        pos1 = Vector.getMinimum(pos1, pos2);
-        pos2 = Vector.getMaximum(temp, pos2);
+        setCorners(pos1, pos2);
 
         world = Bukkit.getWorld(worldName);
 
@@ -88,21 +76,143 @@ public class AmbientEffectGroupInstance extends EffectGroupInstance {
         }
     }
 
+    // Players currently in the region, mapped to the tick they were first seen inside.
+    // Kept by UUID, so players who log out aren't held while the region isn't updating.
+    private final Map<UUID, Long> occupants = new HashMap<>();
+    // Players who recently left the region, mapped to the tick they were first seen outside
+    private final Map<UUID, Long> recentlyLeft = new HashMap<>();
+    private long membershipTick = -1;
+
+    // Reused between updates to avoid allocating per tick or per player.
+    // Only valid for the tick they were filled in, and cleared when suspended.
+    private final List<Player> nearbyPlayers = new ArrayList<>();
+    private final Map<UUID, Player> inside = new HashMap<>();
+    private final Location playerLocation = new Location(null, 0, 0, 0);
+
+    /**
+     * Work out who is inside the region, once per tick, so every effect in this instance can share it.
+     */
+    private void updateMembership() {
+        long tick = plugin.scheduler.getCurrentTick();
+        if (tick == membershipTick) {
+            return;
+        }
+        membershipTick = tick;
+
+        nearbyPlayers.clear();
+        plugin.scheduler.getPlayerIndex()
+                .collectCandidates(world, pos1.getX(), pos1.getZ(), pos2.getX(), pos2.getZ(), nearbyPlayers);
+
+        inside.clear();
+        for (Player player : nearbyPlayers) {
+            if (contains(player.getLocation(playerLocation))) {
+                UUID uuid = player.getUniqueId();
+                inside.put(uuid, player);
+                if (!occupants.containsKey(uuid)) {
+                    occupants.put(uuid, tick);
+                    recentlyLeft.remove(uuid);
+                }
+            }
+        }
+        nearbyPlayers.clear();
+
+        Iterator<Map.Entry<UUID, Long>> occupantIterator = occupants.entrySet().iterator();
+        while (occupantIterator.hasNext()) {
+            UUID uuid = occupantIterator.next().getKey();
+            if (!inside.containsKey(uuid)) {
+                occupantIterator.remove();
+                recentlyLeft.put(uuid, tick);
+            }
+        }
+
+        if (!recentlyLeft.isEmpty()) {
+            // Only remember leavers until every effect has had a chance to see them
+            int longestInterval = 1;
+            for (PersistentEffect effect : effects) {
+                longestInterval = Math.max(longestInterval, effect.interval);
+            }
+
+            long oldestRelevant = tick - longestInterval;
+            recentlyLeft.values().removeIf(leftTick -> leftTick < oldestRelevant);
+        }
+    }
+
+    private boolean contains(Location loc) {
+        double x = loc.getX();
+        double y = loc.getY();
+        double z = loc.getZ();
+
+        return x >= pos1.getX() && x <= pos2.getX()
+                && y >= pos1.getY() && y <= pos2.getY()
+                && z >= pos1.getZ() && z <= pos2.getZ();
+    }
+
+    @Override
+    public boolean hasViewers() {
+        updateMembership();
+
+        return !occupants.isEmpty() || !recentlyLeft.isEmpty();
+    }
+
     @Override
-    public void runEffect(PersistentEffect persistentEffect) {
-        WbsParticleEffect effect = persistentEffect.getEffect();
-
-        List<Player> playersInWorld = world.getPlayers();
-
-        for (Player player : playersInWorld) {
-            Location playerLoc = player.getLocation();
-            if (playerLoc.toVector().isInAABB(pos1, pos2)) {
-                effect.play(
-                        persistentEffect.getParticle(),
-                        playerLoc.add(persistentEffect.getOffset().val()),
-                        player
-                );
+    public int runEffect(PersistentEffect persistentEffect) {
+        updateMembership();
+
+        Map<UUID, Long> targets;
+        switch (persistentEffect.getTrigger()) {
+            case ENTER:
+                targets = occupants;
+                break;
+            case LEAVE:
+                targets = recentlyLeft;
+                break;
+            case ALWAYS:
+            default:
+                targets = null;
+        }
+
+        int plays = 0;
+        if (targets == null) {
+            for (Player player : inside.values()) {
+                playFor(persistentEffect, player);
+                plays++;
             }
+        } else {
+            long lastRun = persistentEffect.getLastRunTick();
+            for (Map.Entry<UUID, Long> entry : targets.entrySet()) {
+                if (entry.getValue() > lastRun) {
+                    // Leavers aren't inside, so look them up; ones who left by logging out are skipped
+                    Player player = targets == occupants ? inside.get(entry.getKey()) : Bukkit.getPlayer(entry.getKey());
+                    if (player != null) {
+                        playFor(persistentEffect, player);
+                        plays++;
+                    }
+                }
+            }
+        }
+
+        return plays;
+    }
+
+    private void playFor(PersistentEffect persistentEffect, Player player) {
+        persistentEffect.play(player.getLocation(playerLocation).add(persistentEffect.getOffset().val()), player);
+    }
+
+    /**
+     * @return An unmodifiable view of the UUIDs of players inside this region as of the last update
+     */
+    public Set<UUID> getOccupants() {
+        return Collections.unmodifiableSet(occupants.keySet());
+    }
+
+    @Override
+    public void setSuspended(boolean suspended) {
+        super.setSuspended(suspended);
+
+        if (suspended) {
+            // Membership isn't updated while suspended, so don't hold on to anyone until it is
+            inside.clear();
+            membershipTick = -1;
         }
     }
 
@@ -112,14 +222,41 @@ public class AmbientEffectGroupInstance extends EffectGroupInstance {
 
         calcCenter();
 
-        Vector toPos1 = pos1.subtract(center.toVector());
-        Vector toPos2 = pos2.subtract(center.toVector());
+        Vector toPos1 = pos1.clone().subtract(center.toVector());
+        Vector toPos2 = pos2.clone().subtract(center.toVector());
+
+        world = location.getWorld();
+        setCorners(location.toVector().add(toPos1), location.toVector().add(toPos2));
+        plugin.highlights.invalidate(this);
 
-        pos1 = location.add(toPos1).toVector();
-        pos2 = location.add(toPos2).toVector();
+        membershipTick = -1;
+        updateTracking();
         return true;
     }
 
+    /**
+     * Set the corners of the region, so that pos1 is always the minimum and pos2 the maximum.
+     */
+    private void setCorners(Vector corner1, Vector corner2) {
+        pos1 = Vector.getMinimum(corner1, corner2);
+        pos2 = Vector.getMaximum(corner1, corner2);
+    }
+
+    @Override
+    public World getWorld() {
+        return world;
+    }
+
+    @Override
+    public Vector getMinCorner() {
+        return pos1.clone();
+    }
+
+    @Override
+    public Vector getMaxCorner() {
+        return pos2.clone();
+    }
+
     @Override
     public void teleportPlayer(Player player) {
         calcCenter();
@@ -150,60 +287,21 @@ public class AmbientEffectGroupInstance extends EffectGroupInstance {
         effectsConfig.set(id + ".ambient.pos2.z", pos2.getZ());
     }
 
-    private final Map<UUID, BukkitRunnable> effectMap = new HashMap<>();
-
     @Override
     public boolean disable() {
         boolean disabled = super.disable();
 
         if (disabled) {
-            for (BukkitRunnable runnable : effectMap.values()) {
-                runnable.cancel();
-            }
-        }
-
-        effectMap.clear();
-
-        return disabled;
-    }
+            plugin.highlights.remove(this);
 
-    /**
-     * Highlight the region this effect appears in to a given player
-     * @param player The player to show the region to
-     * @return The new state of the highlight (true = visible, false = invisible)
-     */
-    public boolean highlightFor(Player player, Plugin plugin) {
-        UUID uuid = player.getUniqueId();
-
-        if (effectMap.containsKey(uuid)) {
-            effectMap.get(uuid).cancel();
-            effectMap.remove(uuid);
-            return false;
+            // Anyone still inside should count as entering when re-enabled
+            occupants.clear();
+            recentlyLeft.clear();
+            inside.clear();
+            membershipTick = -1;
         }
 
-        CuboidParticleEffect effect = new CuboidParticleEffect();
-        effect.setAmount(2);
-        effect.setScaleAmount(true);
-
-        BukkitRunnable runnable = new BukkitRunnable() {
-            public final CuboidParticleEffect cuboidEffect = effect;
-
-            @Override
-            public void run() {
-                calcCenter();
-                effect.setX(Math.abs(pos1.getX() - pos2.getX()));
-                effect.setY(Math.abs(pos1.getY() - pos2.getY()));
-                effect.setZ(Math.abs(pos1.getZ() - pos2.getZ()));
-
-                cuboidEffect.build();
-                cuboidEffect.play(Particle.END_ROD, center, player);
-            }
-        };
-
-        runnable.runTaskTimer(plugin, 0, 5);
-        effectMap.put(uuid, runnable);
-
-        return true;
+        return disabled;
     }
 
     /**
@@ -217,11 +315,14 @@ public class AmbientEffectGroupInstance extends EffectGroupInstance {
             return false;
         }
 
-        this.pos1 = pos1.toVector();
-        this.pos2 = pos2.toVector();
+        setCorners(pos1.toVector(), pos2.toVector());
         this.world = pos1.getWorld();
 
         calcCenter();
+        plugin.highlights.invalidate(this);
+
+        membershipTick = -1;
+        updateTracking();
 
         setUpdated();
 
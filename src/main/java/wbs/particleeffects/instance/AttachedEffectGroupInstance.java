@@ -0,0 +1,382 @@
+package wbs.particleeffects.instance;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.Nullable;
+import wbs.particleeffects.ParticleEffectSettings;
+import wbs.particleeffects.PersistentEffect;
+import wbs.particleeffects.PersistentEffectGroup;
+
+import java.util.*;
+
+/**
+ * A group that follows players or entities around, such as trails and auras.
+ * <p>
+ * Every target shares this one instance, and so one copy of each effect: each run builds
+ * the effect once and plays it on every target, however many there are. Targets are kept
+ * by UUID and looked up again when they come back, so nothing is held for players who
+ * leave. Targets with no one in view-distance are skipped, as is the whole instance
+ * when none of its targets can be seen.
+ * <p>
+ * Targets come from the config's list, which /pe attach and /pe detach edit, and from
+ * every online player with the configured permission. Triggers aren't tracked per target,
+ * so every effect plays as {@link PersistentEffect.Trigger#ALWAYS}.
+ */
+public class AttachedEffectGroupInstance extends EffectGroupInstance {
+
+    private static final double DEFAULT_VIEW_DISTANCE = 48;
+    // Ticks between checking permissions and looking for targets that weren't found
+    private static final int REFRESH_INTERVAL = 20;
+
+    private final Map<UUID, Target> targets = new LinkedHashMap<>();
+
+    @Nullable
+    private String permission;
+    private double viewDistance = DEFAULT_VIEW_DISTANCE;
+    // Whether attached players see their own effects
+    private boolean showSelf = true;
+
+    private long updateTick = -1;
+    private long refreshTick = -1;
+    private final List<Target> visible = new ArrayList<>();
+    private double closestViewerDistance = 0;
+    // The world the last visible target was in, for effects that need one to record in
+    private World lastWorld;
+
+    // Reused between updates to avoid allocating per tick or per player
+    private final List<Player> nearbyPlayers = new ArrayList<>();
+    private final Location playerLocation = new Location(null, 0, 0, 0);
+    private final Location playLocation = new Location(null, 0, 0, 0);
+
+    public AttachedEffectGroupInstance(PersistentEffectGroup type, ConfigurationSection section, ParticleEffectSettings settings, String directory) {
+        super(type, section, settings, directory);
+
+        ConfigurationSection attachedSection = section.getConfigurationSection("attached");
+        assert attachedSection != null;
+        directory += "/attached";
+
+        permission = attachedSection.getString("permission");
+
+        viewDistance = attachedSection.getDouble("view-distance", DEFAULT_VIEW_DISTANCE);
+        if (viewDistance <= 0) {
+            settings.logError("view-distance must be positive.", directory + "/view-distance");
+            viewDistance = DEFAULT_VIEW_DISTANCE;
+        }
+
+        showSelf = attachedSection.getBoolean("show-self", true);
+
+        List<String> uuidStrings = attachedSection.getStringList("targets");
+        for (int i = 0; i < uuidStrings.size(); i++) {
+            try {
+                UUID uuid = UUID.fromString(uuidStrings.get(i).trim());
+                targets.put(uuid, new Target(uuid, true));
+            } catch (IllegalArgumentException e) {
+                settings.logError("Invalid UUID: " + uuidStrings.get(i), directory + "/targets/" + i);
+            }
+        }
+
+        if (targets.isEmpty() && permission == null) {
+            plugin.logger.warning(id + " isn't following anything yet. Add targets with /pe attach, or give it a permission.");
+        }
+    }
+
+    /**
+     * Attach this instance to a player or entity, saving it to the config.
+     * @param entity The player or entity to follow
+     * @return True if it was attached, or false if it was already attached from the config
+     * or a command, or this instance is locked
+     */
+    public boolean attach(Entity entity) {
+        if (isLocked()) {
+            return false;
+        }
+
+        Target target = targets.get(entity.getUniqueId());
+        if (target != null) {
+            if (target.saved) {
+                return false;
+            }
+            target.saved = true;
+        } else {
+            target = new Target(entity.getUniqueId(), true);
+            targets.put(target.uuid, target);
+        }
+
+        target.entity = entity;
+        setUpdated();
+        return true;
+    }
+
+    /**
+     * Stop following a player or entity attached from the config or a command.
+     * Targets from the permission are checked again on the next refresh.
+     * @param uuid The target to stop following
+     * @return True if it was detached, or false if it wasn't attached or this instance is locked
+     */
+    public boolean detach(UUID uuid) {
+        if (isLocked()) {
+            return false;
+        }
+
+        Target target = targets.get(uuid);
+        if (target == null || !target.saved) {
+            return false;
+        }
+
+        targets.remove(uuid);
+        visible.remove(target);
+        refreshTick = -1;
+        setUpdated();
+        return true;
+    }
+
+    /**
+     * Add targets from the permission, drop ones who lost it, and look for targets that weren't found last time.
+     */
+    private void refreshTargets(long tick) {
+        if (refreshTick != -1 && tick - refreshTick < REFRESH_INTERVAL) {
+            return;
+        }
+        refreshTick = tick;
+
+        if (permission != null) {
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                if (player.hasPermission(permission) && !targets.containsKey(player.getUniqueId())) {
+                    Target target = new Target(player.getUniqueId(), false);
+                    target.entity = player;
+                    targets.put(target.uuid, target);
+                }
+            }
+        }
+
+        Iterator<Target> iterator = targets.values().iterator();
+        while (iterator.hasNext()) {
+            Target target = iterator.next();
+
+            if (!target.saved) {
+                Player player = Bukkit.getPlayer(target.uuid);
+                if (player == null || permission == null || !player.hasPermission(permission)) {
+                    iterator.remove();
+                    continue;
+                }
+            }
+
+            if (target.entity == null) {
+                target.entity = Bukkit.getPlayer(target.uuid);
+                if (target.entity == null) {
+                    target.entity = Bukkit.getEntity(target.uuid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find each target's position and who can see it, once per tick, so every effect in this instance can share them.
+     */
+    private void update() {
+        long tick = plugin.scheduler.getCurrentTick();
+        if (tick == updateTick) {
+            return;
+        }
+        updateTick = tick;
+
+        refreshTargets(tick);
+
+        visible.clear();
+        double viewDistanceSquared = viewDistance * viewDistance;
+        double closestSquared = Double.MAX_VALUE;
+
+        for (Target target : targets.values()) {
+            target.viewers.clear();
+
+            Entity entity = target.entity;
+            if (entity == null) {
+                continue;
+            }
+            if (!entity.isValid()) {
+                // Logged out or died; don't keep it, and find it again if it comes back
+                target.entity = null;
+                continue;
+            }
+
+            Location loc = entity.getLocation(target.location);
+
+            nearbyPlayers.clear();
+            plugin.scheduler.getPlayerIndex().collectCandidates(loc.getWorld(),
+                    loc.getX() - viewDistance, loc.getZ() - viewDistance,
+                    loc.getX() + viewDistance, loc.getZ() + viewDistance,
+                    nearbyPlayers);
+
+            for (Player player : nearbyPlayers) {
+                if (!showSelf && player.getUniqueId().equals(target.uuid)) {
+                    continue;
+                }
+
+                double distanceSquared = player.getLocation(playerLocation).distanceSquared(loc);
+                if (distanceSquared <= viewDistanceSquared) {
+                    target.viewers.add(player);
+                    closestSquared = Math.min(closestSquared, distanceSquared);
+                }
+            }
+
+            if (!target.viewers.isEmpty()) {
+                visible.add(target);
+                lastWorld = loc.getWorld();
+            }
+        }
+
+        closestViewerDistance = visible.isEmpty() ? 0 : Math.sqrt(closestSquared);
+    }
+
+    @Override
+    public boolean hasViewers() {
+        update();
+
+        return !visible.isEmpty();
+    }
+
+    @Override
+    public double getClosestViewerDistance() {
+        return closestViewerDistance;
+    }
+
+    @Override
+    public int runEffect(PersistentEffect persistentEffect) {
+        update();
+
+        Vector offset = persistentEffect.getOffset().val();
+
+        int plays = 0;
+        for (Target target : visible) {
+            Location loc = target.location;
+            playLocation.setWorld(loc.getWorld());
+            playLocation.setX(loc.getX() + offset.getX());
+            playLocation.setY(loc.getY() + offset.getY());
+            playLocation.setZ(loc.getZ() + offset.getZ());
+
+            for (Player viewer : target.viewers) {
+                persistentEffect.play(playLocation, viewer);
+                plays++;
+            }
+        }
+
+        return plays;
+    }
+
+    @Override
+    public boolean disable() {
+        boolean disabled = super.disable();
+
+        if (disabled) {
+            // Don't keep players or entities while nothing's running
+            for (Target target : targets.values()) {
+                target.entity = null;
+                target.viewers.clear();
+            }
+            visible.clear();
+            updateTick = -1;
+            refreshTick = -1;
+        }
+
+        return disabled;
+    }
+
+    /**
+     * Attached instances follow their targets, so they can't be moved.
+     * @return False
+     */
+    @Override
+    public boolean move(Location location) {
+        return false;
+    }
+
+    @Override
+    protected boolean isAnchoredToChunks() {
+        return false;
+    }
+
+    @Override
+    public void teleportPlayer(Player player) {
+        for (Target target : targets.values()) {
+            if (target.entity != null && target.entity.isValid()) {
+                player.teleport(target.entity.getLocation());
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The world the last visible target was in, or null if none have been seen
+     */
+    @Override
+    public World getWorld() {
+        return lastWorld;
+    }
+
+    @Override
+    public Vector getMinCorner() {
+        return new Vector();
+    }
+
+    @Override
+    public Vector getMaxCorner() {
+        return new Vector();
+    }
+
+    /**
+     * @return The number of players and entities this follows, including ones that aren't online or loaded
+     */
+    public int getTargetCount() {
+        return targets.size();
+    }
+
+    /**
+     * @return The number of targets someone could see as of the last update
+     */
+    public int getVisibleCount() {
+        return visible.size();
+    }
+
+    @Override
+    public void writeToConfig(ConfigurationSection effectsConfig) {
+        super.writeToConfig(effectsConfig);
+
+        List<String> uuidStrings = new ArrayList<>();
+        for (Target target : targets.values()) {
+            if (target.saved) {
+                uuidStrings.add(target.uuid.toString());
+            }
+        }
+
+        effectsConfig.set(id + ".attached.targets", uuidStrings);
+        effectsConfig.set(id + ".attached.view-distance", viewDistance);
+        if (permission != null) {
+            effectsConfig.set(id + ".attached.permission", permission);
+        }
+        if (!showSelf) {
+            effectsConfig.set(id + ".attached.show-self", false);
+        }
+    }
+
+    private static class Target {
+        private final UUID uuid;
+        // Whether this target is in the config, rather than from the permission
+        private boolean saved;
+
+        // Null while offline or unloaded, and never kept once invalid
+        @Nullable
+        private Entity entity;
+        private final Location location = new Location(null, 0, 0, 0);
+        private final List<Player> viewers = new ArrayList<>();
+
+        private Target(UUID uuid, boolean saved) {
+            this.uuid = uuid;
+            this.saved = saved;
+        }
+    }
+}
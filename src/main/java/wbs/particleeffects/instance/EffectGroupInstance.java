@@ -3,11 +3,16 @@ package wbs.particleeffects.instance;
 import org.bukkit.*;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+import wbs.particleeffects.EffectTemplate;
 import wbs.particleeffects.ParticleEffectSettings;
 import wbs.particleeffects.PersistentEffect;
 import wbs.particleeffects.PersistentEffectGroup;
+import wbs.particleeffects.WbsParticleEffects;
+import wbs.particleeffects.profile.EffectStats;
 import wbs.utils.util.configuration.WbsConfigReader;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -16,21 +21,26 @@ public abstract class EffectGroupInstance {
     public static EffectGroupInstance buildInstance(PersistentEffectGroup type, ConfigurationSection section, ParticleEffectSettings settings, String directory) {
         ConfigurationSection ambientConfig = section.getConfigurationSection("ambient");
 
-        if (ambientConfig != null) {
+        if (section.getConfigurationSection("zones") != null) {
+            return new ZoneEffectGroupInstance(type, section, settings, directory);
+        } else if (section.getConfigurationSection("attached") != null) {
+            return new AttachedEffectGroupInstance(type, section, settings, directory);
+        } else if (ambientConfig != null) {
             return new AmbientEffectGroupInstance(type, section, settings, directory);
         } else {
             return new StaticEffectGroupInstance(type, section, settings, directory);
         }
     }
 
-    public static EffectGroupInstance buildInstance(PersistentEffectGroup type, String id, Location loc1, Location loc2, boolean enabled) {
+    public static EffectGroupInstance buildInstance(PersistentEffectGroup type, String id, Location loc1, Location loc2, boolean enabled, ParticleEffectSettings settings) {
         if (loc1.equals(loc2)) {
-            return new StaticEffectGroupInstance(type, id, loc1, enabled);
+            return new StaticEffectGroupInstance(type, id, loc1, enabled, settings);
         } else {
-            return new AmbientEffectGroupInstance(type, id, loc1, loc2, enabled);
+            return new AmbientEffectGroupInstance(type, id, loc1, loc2, enabled, settings);
         }
     }
 
+    protected final WbsParticleEffects plugin;
     protected final String id;
     protected boolean enabled;
 
@@ -42,7 +52,15 @@ public abstract class EffectGroupInstance {
 
     private boolean updated = false;
 
-    protected EffectGroupInstance(PersistentEffectGroup type, String id, boolean enabled) {
+    private final EffectStats stats = new EffectStats();
+
+    // Whether this instance is registered with the chunk index
+    private boolean tracked = false;
+    // Whether none of the chunks this instance is anchored in are loaded
+    private boolean suspended = false;
+
+    protected EffectGroupInstance(PersistentEffectGroup type, String id, boolean enabled, ParticleEffectSettings settings) {
+        plugin = settings.getPlugin();
         this.type = type;
         this.id = id;
         this.enabled = enabled;
@@ -51,6 +69,7 @@ public abstract class EffectGroupInstance {
     protected EffectGroupInstance(PersistentEffectGroup type, ConfigurationSection section, ParticleEffectSettings settings, String directory) {
         WbsConfigReader.requireNotNull(section, "enabled", settings, directory);
 
+        plugin = settings.getPlugin();
         id = section.getName();
         this.type = type;
 
@@ -103,6 +122,7 @@ public abstract class EffectGroupInstance {
     public boolean start() {
         boolean wasEnabled = enabled;
         enabled = true;
+        startTracking();
         for (PersistentEffect effect : effects) {
             effect.start();
         }
@@ -114,7 +134,21 @@ public abstract class EffectGroupInstance {
         return !wasEnabled;
     }
 
-    public abstract void runEffect(PersistentEffect persistentEffect);
+    /**
+     * Play a single effect belonging to this instance.
+     * @param persistentEffect The effect to play, already built for this tick
+     * @return The number of times the effect was played
+     */
+    public abstract int runEffect(PersistentEffect persistentEffect);
+
+    /**
+     * Check whether anyone could currently see this instance's effects. When false,
+     * effects skip building and playing entirely until someone comes back.
+     * @return True if there may be a player to show effects to this tick.
+     */
+    public boolean hasViewers() {
+        return true;
+    }
 
     /**
      * Enable this effect if it's disabled.
@@ -124,6 +158,7 @@ public abstract class EffectGroupInstance {
         if (enabled) return false;
         setUpdated();
         enabled = true;
+        startTracking();
         for (PersistentEffect effect : effects) {
             effect.start();
         }
@@ -141,6 +176,7 @@ public abstract class EffectGroupInstance {
         for (PersistentEffect effect : effects) {
             effect.stop();
         }
+        stopTracking();
         return true;
     }
 
@@ -167,11 +203,17 @@ public abstract class EffectGroupInstance {
         effects.add(effect);
     }
 
-    public void readEffectsFromConfig(ConfigurationSection section, ParticleEffectSettings settings, String directory) {
-        for (String effectKey : section.getKeys(false)) {
-            PersistentEffect effect = new PersistentEffect(this, section.getConfigurationSection(effectKey), settings, directory + "/effects/" + effectKey);
+    public List<PersistentEffect> getEffects() {
+        return Collections.unmodifiableList(effects);
+    }
 
-            addEffect(effect);
+    /**
+     * Give this instance its own copy of each effect in its group.
+     * @param settings The settings to log errors to
+     */
+    public void createEffects(ParticleEffectSettings settings) {
+        for (EffectTemplate template : type.getTemplates()) {
+            addEffect(new PersistentEffect(this, template, settings));
         }
     }
 
@@ -209,13 +251,98 @@ public abstract class EffectGroupInstance {
     public boolean setUpdated() {
         if (!locked) {
             updated = true;
+            plugin.settings.markUpdated(this);
         }
         return !locked;
     }
 
     public abstract void teleportPlayer(Player player);
 
+    /**
+     * @return The world this instance plays in
+     */
+    public abstract World getWorld();
+
+    /**
+     * @return The lowest corner of the area this instance is anchored to
+     */
+    public abstract Vector getMinCorner();
+
+    /**
+     * @return The highest corner of the area this instance is anchored to
+     */
+    public abstract Vector getMaxCorner();
+
+    /**
+     * @return False if loading or unloading chunks shouldn't suspend this instance, such as when it
+     * moves around or its bounds cover far more chunks than it plays in
+     */
+    protected boolean isAnchoredToChunks() {
+        return true;
+    }
+
+    private void startTracking() {
+        if (!tracked && isAnchoredToChunks()) {
+            plugin.chunkIndex.add(this);
+            tracked = true;
+        }
+    }
+
+    private void stopTracking() {
+        if (tracked) {
+            plugin.chunkIndex.remove(this);
+            tracked = false;
+        }
+    }
+
+    /**
+     * Re-register this instance with the chunk index after its anchor area changed.
+     */
+    protected void updateTracking() {
+        if (tracked) {
+            plugin.chunkIndex.add(this);
+        }
+    }
+
+    /**
+     * Used to lower detail for far away viewers. Only meaningful after {@link #hasViewers()} this tick.
+     * @return How far the closest viewer is from this instance, or 0 if it doesn't track distance
+     */
+    public double getClosestViewerDistance() {
+        return 0;
+    }
+
+    /**
+     * @return True if this instance is paused because none of its chunks are loaded
+     */
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Pause or resume this instance without changing whether it's enabled. Effects keep
+     * their animation state while suspended and carry on from it when resumed.
+     * @param suspended Whether this instance should be paused
+     */
+    public void setSuspended(boolean suspended) {
+        this.suspended = suspended;
+    }
+
     public boolean isUpdated() {
         return updated;
     }
+
+    /**
+     * @return Recent costs of all this instance's effects together
+     */
+    public EffectStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Mark this instance as saved, after its state was captured for writing.
+     */
+    public void setSaved() {
+        updated = false;
+    }
 }
@@ -1,22 +1,38 @@
 package wbs.particleeffects.instance;
 
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
 import wbs.particleeffects.ParticleEffectSettings;
 import wbs.particleeffects.PersistentEffect;
 import wbs.particleeffects.PersistentEffectGroup;
+import wbs.utils.exceptions.InvalidConfigurationException;
 import wbs.utils.util.configuration.WbsConfigReader;
-import wbs.utils.util.particles.WbsParticleEffect;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 public class StaticEffectGroupInstance extends EffectGroupInstance {
 
     private Location loc;
 
-    public StaticEffectGroupInstance(PersistentEffectGroup type, String id, Location loc, boolean enabled) {
-        super(type, id, enabled);
+    // The distance players must be within to see this instance. Negative to use the default from config.yml
+    private double cullDistance = -1;
+
+    private long viewerCheckTick = -1;
+    private boolean hasViewers;
+    // Only known when culling is on; otherwise 0, so distance never lowers detail
+    private double closestViewerDistance = 0;
+
+    // Reused between checks to avoid allocating per tick or per player
+    private final List<Player> nearbyPlayers = new ArrayList<>();
+    private final Location playerLocation = new Location(null, 0, 0, 0);
+
+    public StaticEffectGroupInstance(PersistentEffectGroup type, String id, Location loc, boolean enabled, ParticleEffectSettings settings) {
+        super(type, id, enabled, settings);
         this.loc = loc;
     }
 
@@ -24,7 +40,13 @@ public class StaticEffectGroupInstance extends EffectGroupInstance {
         super(type, section, settings, directory);
         WbsConfigReader.requireNotNull(section, "location", settings, directory);
         loc = loadLocationFromString(section.getString("location"), settings, directory + "/location");
+        if (loc == null) {
+            throw new InvalidConfigurationException();
+        }
 
+        if (section.get("cull-distance") != null) {
+            cullDistance = section.getDouble("cull-distance");
+        }
     }
 
     @Override
@@ -32,12 +54,48 @@ public class StaticEffectGroupInstance extends EffectGroupInstance {
         player.teleport(loc);
     }
 
-    public void runEffect(PersistentEffect persistentEffect) {
-        WbsParticleEffect effect = persistentEffect.getEffect();
-        effect.play(
-                persistentEffect.getParticle(),
-                loc.clone().add(persistentEffect.getOffset().val())
-        );
+    @Override
+    public boolean hasViewers() {
+        long tick = plugin.scheduler.getCurrentTick();
+        if (tick == viewerCheckTick) {
+            return hasViewers;
+        }
+        viewerCheckTick = tick;
+
+        double distance = cullDistance >= 0 ? cullDistance : plugin.settings.getCullDistance();
+        if (distance <= 0) {
+            hasViewers = true;
+            closestViewerDistance = 0;
+            return true;
+        }
+
+        nearbyPlayers.clear();
+        plugin.scheduler.getPlayerIndex().collectCandidates(loc.getWorld(),
+                loc.getX() - distance, loc.getZ() - distance,
+                loc.getX() + distance, loc.getZ() + distance,
+                nearbyPlayers);
+
+        double distanceSquared = distance * distance;
+        double closestSquared = Double.MAX_VALUE;
+        for (Player player : nearbyPlayers) {
+            closestSquared = Math.min(closestSquared, player.getLocation(playerLocation).distanceSquared(loc));
+        }
+
+        hasViewers = closestSquared <= distanceSquared;
+        closestViewerDistance = hasViewers ? Math.sqrt(closestSquared) : 0;
+
+        return hasViewers;
+    }
+
+    @Override
+    public double getClosestViewerDistance() {
+        return closestViewerDistance;
+    }
+
+    @Override
+    public int runEffect(PersistentEffect persistentEffect) {
+        persistentEffect.play(loc.clone().add(persistentEffect.getOffset().val()), null);
+        return 1;
     }
 
     public Location getLocation() {
@@ -48,12 +106,32 @@ public class StaticEffectGroupInstance extends EffectGroupInstance {
     public boolean move(Location location) {
         if (!super.move(location)) return false;
         loc = location;
+        viewerCheckTick = -1;
+        updateTracking();
         return true;
     }
 
+    @Override
+    public World getWorld() {
+        return loc == null ? null : loc.getWorld();
+    }
+
+    @Override
+    public Vector getMinCorner() {
+        return loc.toVector();
+    }
+
+    @Override
+    public Vector getMaxCorner() {
+        return loc.toVector();
+    }
+
     @Override
     public void writeToConfig(ConfigurationSection effectsConfig) {
         super.writeToConfig(effectsConfig);
         effectsConfig.set(id + ".location", loc.getX() + "," + loc.getY() + "," + loc.getZ() + "," + Objects.requireNonNull(loc.getWorld()).getName());
+        if (cullDistance >= 0) {
+            effectsConfig.set(id + ".cull-distance", cullDistance);
+        }
     }
 }
@@ -0,0 +1,305 @@
+package wbs.particleeffects.instance;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+import wbs.particleeffects.ParticleEffectSettings;
+import wbs.particleeffects.PersistentEffect;
+import wbs.particleeffects.PersistentEffectGroup;
+import wbs.particleeffects.region.ZoneIndex;
+import wbs.particleeffects.region.ZoneIndex.Zone;
+import wbs.utils.exceptions.InvalidConfigurationException;
+import wbs.utils.util.configuration.WbsConfigReader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Many small ambient zones that play the same group, such as drips over every puddle in a town.
+ * <p>
+ * The whole set is one instance with one copy of each effect, so the scheduler only sees
+ * a handful of effects however many zones there are. Zones are bucketed by chunk, and each
+ * tick only the chunks around nearby players are looked at, so a zone nobody is near costs
+ * nothing beyond its memory.
+ * <p>
+ * Effects play either at the centre of each zone with a player in range, or on each player
+ * standing in a zone, like a regular ambient instance. Triggers aren't tracked per zone,
+ * so every effect plays as {@link PersistentEffect.Trigger#ALWAYS}.
+ */
+public class ZoneEffectGroupInstance extends EffectGroupInstance {
+
+    public enum Anchor {
+        /** Play at the centre of each zone, to everyone nearby */
+        ZONE,
+        /** Play on each player inside a zone, to that player */
+        PLAYER
+    }
+
+    private static final double DEFAULT_VIEW_DISTANCE = 32;
+
+    private World world;
+    private final ZoneIndex zones = new ZoneIndex();
+    // Lines from the list that couldn't be read, written back as they were so saving doesn't lose them
+    private final List<String> malformedZones = new ArrayList<>();
+    private Vector minCorner, maxCorner;
+
+    private Anchor anchor = Anchor.ZONE;
+    // How close a player must be to a zone for it to play, when anchored to zones
+    private double viewDistance = DEFAULT_VIEW_DISTANCE;
+
+    private long activeTick = -1;
+    private final List<Zone> activeZones = new ArrayList<>();
+    private final List<Player> viewers = new ArrayList<>();
+
+    // Reused between updates to avoid allocating per tick or per player
+    private final List<Player> nearbyPlayers = new ArrayList<>();
+    private final List<Zone> containingZones = new ArrayList<>();
+    private final Location playerLocation = new Location(null, 0, 0, 0);
+    private final Location playLocation = new Location(null, 0, 0, 0);
+
+    public ZoneEffectGroupInstance(PersistentEffectGroup type, ConfigurationSection section, ParticleEffectSettings settings, String directory) {
+        super(type, section, settings, directory);
+
+        ConfigurationSection zonesSection = WbsConfigReader.getRequiredSection(section, "zones", settings, directory);
+        directory += "/zones";
+
+        WbsConfigReader.requireNotNull(zonesSection, "world", settings, directory);
+        String worldName = zonesSection.getString("world");
+        assert worldName != null;
+
+        world = Bukkit.getWorld(worldName);
+        if (world == null) {
+            settings.logError("World not found: " + worldName, directory + "/world");
+            throw new InvalidConfigurationException();
+        }
+
+        String anchorString = zonesSection.getString("anchor");
+        if (anchorString != null) {
+            try {
+                anchor = Anchor.valueOf(anchorString.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                settings.logError("Invalid anchor: " + anchorString + ". Use zone or player.", directory + "/anchor");
+                throw new InvalidConfigurationException();
+            }
+        }
+
+        viewDistance = zonesSection.getDouble("view-distance", DEFAULT_VIEW_DISTANCE);
+        if (viewDistance < 0) {
+            settings.logError("view-distance must not be negative.", directory + "/view-distance");
+            viewDistance = DEFAULT_VIEW_DISTANCE;
+        }
+
+        List<String> zoneStrings = zonesSection.getStringList("list");
+        for (int i = 0; i < zoneStrings.size(); i++) {
+            Zone zone = parseZone(zoneStrings.get(i));
+            if (zone == null) {
+                settings.logError("Malformed zone (x1,y1,z1,x2,y2,z2): " + zoneStrings.get(i), directory + "/list/" + i);
+                malformedZones.add(zoneStrings.get(i));
+                continue;
+            }
+
+            zones.add(zone);
+        }
+
+        if (zones.size() == 0) {
+            settings.logError("There must be at least one zone.", directory + "/list");
+            throw new InvalidConfigurationException();
+        }
+
+        calcBounds();
+    }
+
+    private static Zone parseZone(String zoneString) {
+        String[] args = zoneString.split(",");
+        if (args.length != 6) {
+            return null;
+        }
+
+        double[] coords = new double[6];
+        try {
+            for (int i = 0; i < 6; i++) {
+                coords[i] = Double.parseDouble(args[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        return new Zone(new Vector(coords[0], coords[1], coords[2]), new Vector(coords[3], coords[4], coords[5]));
+    }
+
+    private void calcBounds() {
+        minCorner = null;
+        maxCorner = null;
+        for (Zone zone : zones.getZones()) {
+            if (minCorner == null) {
+                minCorner = zone.getMinCorner();
+                maxCorner = zone.getMaxCorner();
+            } else {
+                minCorner = Vector.getMinimum(minCorner, zone.getMinCorner());
+                maxCorner = Vector.getMaximum(maxCorner, zone.getMaxCorner());
+            }
+        }
+    }
+
+    /**
+     * Find the zones with a player close enough, once per tick, so every effect in this instance can share them.
+     */
+    private void updateActive() {
+        long tick = plugin.scheduler.getCurrentTick();
+        if (tick == activeTick) {
+            return;
+        }
+        activeTick = tick;
+
+        activeZones.clear();
+        viewers.clear();
+
+        double reach = anchor == Anchor.ZONE ? viewDistance : 0;
+
+        nearbyPlayers.clear();
+        plugin.scheduler.getPlayerIndex().collectCandidates(world,
+                minCorner.getX() - reach, minCorner.getZ() - reach,
+                maxCorner.getX() + reach, maxCorner.getZ() + reach,
+                nearbyPlayers);
+
+        zones.startPass();
+        for (Player player : nearbyPlayers) {
+            Location loc = player.getLocation(playerLocation);
+
+            if (anchor == Anchor.ZONE) {
+                zones.collectNear(loc.getX(), loc.getY(), loc.getZ(), reach, activeZones);
+            } else {
+                // Every player needs checking against every zone they're in, not just ones no one else was in
+                zones.startPass();
+                containingZones.clear();
+                if (zones.collectNear(loc.getX(), loc.getY(), loc.getZ(), 0, containingZones) > 0) {
+                    viewers.add(player);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean hasViewers() {
+        updateActive();
+
+        return anchor == Anchor.ZONE ? !activeZones.isEmpty() : !viewers.isEmpty();
+    }
+
+    @Override
+    public int runEffect(PersistentEffect persistentEffect) {
+        updateActive();
+
+        Vector offset = persistentEffect.getOffset().val();
+
+        if (anchor == Anchor.PLAYER) {
+            for (Player player : viewers) {
+                persistentEffect.play(player.getLocation(playerLocation).add(offset), player);
+            }
+            return viewers.size();
+        }
+
+        playLocation.setWorld(world);
+        for (Zone zone : activeZones) {
+            playLocation.setX(zone.getCenterX() + offset.getX());
+            playLocation.setY(zone.getCenterY() + offset.getY());
+            playLocation.setZ(zone.getCenterZ() + offset.getZ());
+
+            persistentEffect.play(playLocation, null);
+        }
+        return activeZones.size();
+    }
+
+    /**
+     * Move every zone together, keeping their positions relative to each other.
+     * @param location Where the centre of all the zones should be
+     */
+    @Override
+    public boolean move(Location location) {
+        if (!super.move(location)) return false;
+
+        Vector shift = location.toVector().subtract(minCorner.clone().add(maxCorner).multiply(0.5));
+
+        List<Zone> moved = new ArrayList<>(zones.size());
+        for (Zone zone : zones.getZones()) {
+            moved.add(new Zone(zone.getMinCorner().add(shift), zone.getMaxCorner().add(shift)));
+        }
+
+        zones.clear();
+        for (Zone zone : moved) {
+            zones.add(zone);
+        }
+
+        world = location.getWorld();
+        calcBounds();
+
+        activeTick = -1;
+        return true;
+    }
+
+    /**
+     * Zones can be spread over a whole town, so tracking every chunk in their bounds would
+     * cost far more than the zones. They're only looked at near players anyway, and players
+     * keep the chunks around them loaded.
+     * @return False
+     */
+    @Override
+    protected boolean isAnchoredToChunks() {
+        return false;
+    }
+
+    @Override
+    public void teleportPlayer(Player player) {
+        Zone zone = zones.getZones().get(0);
+        player.teleport(new Location(world, zone.getCenterX(), zone.getCenterY(), zone.getCenterZ()));
+    }
+
+    @Override
+    public World getWorld() {
+        return world;
+    }
+
+    @Override
+    public Vector getMinCorner() {
+        return minCorner.clone();
+    }
+
+    @Override
+    public Vector getMaxCorner() {
+        return maxCorner.clone();
+    }
+
+    public Anchor getAnchor() {
+        return anchor;
+    }
+
+    public int getZoneCount() {
+        return zones.size();
+    }
+
+    /**
+     * @return The number of zones with a player close enough as of the last update, when anchored to zones
+     */
+    public int getActiveZoneCount() {
+        return activeZones.size();
+    }
+
+    @Override
+    public void writeToConfig(ConfigurationSection effectsConfig) {
+        super.writeToConfig(effectsConfig);
+
+        effectsConfig.set(id + ".zones.world", world.getName());
+        effectsConfig.set(id + ".zones.anchor", anchor.name().toLowerCase());
+        effectsConfig.set(id + ".zones.view-distance", viewDistance);
+
+        List<String> zoneStrings = new ArrayList<>(zones.size() + malformedZones.size());
+        for (Zone zone : zones.getZones()) {
+            zoneStrings.add(zone.toString());
+        }
+        zoneStrings.addAll(malformedZones);
+        effectsConfig.set(id + ".zones.list", zoneStrings);
+    }
+}
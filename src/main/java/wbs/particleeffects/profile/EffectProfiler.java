@@ -0,0 +1,123 @@
+package wbs.particleeffects.profile;
+
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+import wbs.particleeffects.PersistentEffect;
+import wbs.particleeffects.WbsParticleEffects;
+import wbs.particleeffects.instance.EffectGroupInstance;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reports on the {@link EffectStats} kept by every instance and effect.
+ */
+public class EffectProfiler {
+
+    private static final String CSV_HEADER = "time,instance,effect,build_ms,play_ms,particles,players,runs,skipped\n";
+
+    private final WbsParticleEffects plugin;
+    private BukkitTask csvTask;
+
+    public EffectProfiler(WbsParticleEffects plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * @param instances The instances to rank
+     * @param limit The most instances to return. Must be at least 1.
+     * @return The instances that spent the most time over the last {@link EffectStats#WINDOW_SECONDS} seconds, costliest first
+     */
+    public List<EffectGroupInstance> getCostliest(Collection<EffectGroupInstance> instances, int limit) {
+        long tick = plugin.scheduler.getCurrentTick();
+
+        List<EffectGroupInstance> sorted = new ArrayList<>(instances);
+        sorted.removeIf(instance -> instance.getStats().getRuns(tick) == 0 && instance.getStats().getSkipped(tick) == 0);
+        sorted.sort(Comparator.comparingLong((EffectGroupInstance instance) -> instance.getStats().getTotalNanos(tick)).reversed());
+
+        if (sorted.size() > limit) {
+            return sorted.subList(0, limit);
+        }
+        return sorted;
+    }
+
+    /**
+     * Append every instance's and effect's stats to profile.csv in the data folder on a timer.
+     * @param intervalSeconds How often to write, or 0 to stop writing
+     */
+    public void setCsvInterval(int intervalSeconds) {
+        if (csvTask != null) {
+            csvTask.cancel();
+            csvTask = null;
+        }
+
+        if (intervalSeconds <= 0) {
+            return;
+        }
+
+        long intervalTicks = intervalSeconds * 20L;
+        csvTask = new BukkitRunnable() {
+            @Override
+            public void run() {
+                String rows = buildCsvRows();
+                File file = new File(plugin.getDataFolder(), "profile.csv");
+
+                // One thread, so dumps can't interleave or both write the header
+                plugin.settings.runOnSaveThread(() -> appendCsv(file, rows));
+            }
+        }.runTaskTimer(plugin, intervalTicks, intervalTicks);
+    }
+
+    private String buildCsvRows() {
+        long tick = plugin.scheduler.getCurrentTick();
+        long time = System.currentTimeMillis();
+
+        StringBuilder rows = new StringBuilder();
+        for (EffectGroupInstance instance : plugin.settings.getAllInstances().values()) {
+            appendRow(rows, time, instance.getId(), "", instance.getStats(), tick);
+
+            for (PersistentEffect effect : instance.getEffects()) {
+                appendRow(rows, time, instance.getId(), effect.getTemplate().getName(), effect.getStats(), tick);
+            }
+        }
+        return rows.toString();
+    }
+
+    private static void appendRow(StringBuilder rows, long time, String instance, String effect, EffectStats stats, long tick) {
+        rows.append(time).append(',')
+                .append(escapeCsv(instance)).append(',')
+                .append(escapeCsv(effect)).append(',')
+                .append(String.format("%.3f", stats.getBuildNanos(tick) / 1_000_000.0)).append(',')
+                .append(String.format("%.3f", stats.getPlayNanos(tick) / 1_000_000.0)).append(',')
+                .append(stats.getParticles(tick)).append(',')
+                .append(stats.getPlayers(tick)).append(',')
+                .append(stats.getRuns(tick)).append(',')
+                .append(stats.getSkipped(tick)).append('\n');
+    }
+
+    private static String escapeCsv(String field) {
+        if (field.indexOf(',') == -1 && field.indexOf('"') == -1 && field.indexOf('\n') == -1 && field.indexOf('\r') == -1) {
+            return field;
+        }
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+
+    private void appendCsv(File file, String rows) {
+        try {
+            if (!file.exists()) {
+                Files.write(file.toPath(), CSV_HEADER.getBytes(StandardCharsets.UTF_8));
+            }
+            Files.write(file.toPath(), rows.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            plugin.logger.warning("Failed to write profile.csv");
+            e.printStackTrace();
+        }
+    }
+}
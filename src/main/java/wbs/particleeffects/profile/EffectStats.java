@@ -0,0 +1,109 @@
+package wbs.particleeffects.profile;
+
+import java.util.Arrays;
+
+/**
+ * Rolling cost counters for an effect or instance, covering the last {@link #WINDOW_SECONDS} seconds.
+ * <p>
+ * Counts go into one-second buckets that are reused as the window moves, so recording is
+ * a few array writes and old data falls away without any cleanup pass. Main thread only.
+ */
+public class EffectStats {
+
+    public static final int WINDOW_SECONDS = 10;
+    private static final int BUCKET_TICKS = 20;
+
+    private static final int BUILD_NANOS = 0;
+    private static final int PLAY_NANOS = 1;
+    private static final int PARTICLES = 2;
+    private static final int PLAYERS = 3;
+    private static final int RUNS = 4;
+    private static final int SKIPPED = 5;
+    private static final int FIELDS = 6;
+
+    private final long[] epochs = new long[WINDOW_SECONDS];
+    private final long[][] buckets = new long[WINDOW_SECONDS][FIELDS];
+
+    public EffectStats() {
+        Arrays.fill(epochs, -1);
+    }
+
+    /**
+     * Record one run of an effect.
+     * @param tick The current scheduler tick
+     * @param buildNanos Time spent preparing the frame: refreshing providers, building and recording
+     * @param playNanos Time spent playing or queueing the frame
+     * @param particles Particles sent
+     * @param players Players the effect was sent to
+     */
+    public void recordRun(long tick, long buildNanos, long playNanos, int particles, int players) {
+        long[] bucket = bucket(tick);
+        bucket[BUILD_NANOS] += buildNanos;
+        bucket[PLAY_NANOS] += playNanos;
+        bucket[PARTICLES] += particles;
+        bucket[PLAYERS] += players;
+        bucket[RUNS]++;
+    }
+
+    /**
+     * Record a run that was skipped because nobody could see it, or because the tick budget
+     * was still holding back the run before it.
+     * @param tick The current scheduler tick
+     */
+    public void recordSkip(long tick) {
+        bucket(tick)[SKIPPED]++;
+    }
+
+    private long[] bucket(long tick) {
+        long epoch = tick / BUCKET_TICKS;
+        int index = (int) (epoch % WINDOW_SECONDS);
+        if (epochs[index] != epoch) {
+            epochs[index] = epoch;
+            Arrays.fill(buckets[index], 0);
+        }
+        return buckets[index];
+    }
+
+    private long sum(int field, long tick) {
+        long oldest = tick / BUCKET_TICKS - WINDOW_SECONDS;
+
+        long total = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            if (epochs[i] > oldest) {
+                total += buckets[i][field];
+            }
+        }
+        return total;
+    }
+
+    public long getBuildNanos(long tick) {
+        return sum(BUILD_NANOS, tick);
+    }
+
+    public long getPlayNanos(long tick) {
+        return sum(PLAY_NANOS, tick);
+    }
+
+    /**
+     * @return Build and play time together, in nanoseconds
+     */
+    public long getTotalNanos(long tick) {
+        return getBuildNanos(tick) + getPlayNanos(tick);
+    }
+
+    public long getParticles(long tick) {
+        return sum(PARTICLES, tick);
+    }
+
+    public long getPlayers(long tick) {
+        return sum(PLAYERS, tick);
+    }
+
+    public long getRuns(long tick) {
+        return sum(RUNS, tick);
+    }
+
+    public long getSkipped(long tick) {
+        return sum(SKIPPED, tick);
+    }
+}
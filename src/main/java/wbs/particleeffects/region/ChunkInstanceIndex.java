@@ -0,0 +1,160 @@
+package wbs.particleeffects.region;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.util.Vector;
+import wbs.particleeffects.instance.EffectGroupInstance;
+
+import java.util.*;
+
+/**
+ * Maps chunks to the running instances anchored in them, and suspends
+ * instances while none of their chunks are loaded.
+ * Each chunk event is a single lookup, touching only the instances in that chunk.
+ */
+public class ChunkInstanceIndex implements Listener {
+
+    private final Map<World, Map<Long, List<TrackedInstance>>> worlds = new HashMap<>();
+    private final Map<EffectGroupInstance, TrackedInstance> tracked = new HashMap<>();
+
+    /**
+     * Start tracking a running instance, suspending it immediately if none of its chunks are loaded.
+     * @param instance The instance to track
+     */
+    public void add(EffectGroupInstance instance) {
+        remove(instance);
+
+        World world = instance.getWorld();
+        if (world == null) {
+            return;
+        }
+
+        Vector min = instance.getMinCorner();
+        Vector max = instance.getMaxCorner();
+
+        TrackedInstance entry = new TrackedInstance(instance, world,
+                min.getBlockX() >> 4, min.getBlockZ() >> 4,
+                max.getBlockX() >> 4, max.getBlockZ() >> 4);
+
+        Map<Long, List<TrackedInstance>> chunks = worlds.get(world);
+        if (chunks == null) {
+            chunks = new HashMap<>();
+            worlds.put(world, chunks);
+        }
+
+        for (int chunkX = entry.minChunkX; chunkX <= entry.maxChunkX; chunkX++) {
+            for (int chunkZ = entry.minChunkZ; chunkZ <= entry.maxChunkZ; chunkZ++) {
+                long key = PlayerChunkIndex.chunkKey(chunkX, chunkZ);
+
+                List<TrackedInstance> inChunk = chunks.get(key);
+                if (inChunk == null) {
+                    inChunk = new ArrayList<>(1);
+                    chunks.put(key, inChunk);
+                }
+                inChunk.add(entry);
+
+                if (world.isChunkLoaded(chunkX, chunkZ)) {
+                    entry.loadedChunks++;
+                }
+            }
+        }
+
+        tracked.put(instance, entry);
+        instance.setSuspended(entry.loadedChunks == 0);
+    }
+
+    /**
+     * Stop tracking an instance, and un-suspend it.
+     * @param instance The instance to stop tracking
+     */
+    public void remove(EffectGroupInstance instance) {
+        TrackedInstance entry = tracked.remove(instance);
+        if (entry == null) {
+            return;
+        }
+
+        Map<Long, List<TrackedInstance>> chunks = worlds.get(entry.world);
+        if (chunks != null) {
+            for (int chunkX = entry.minChunkX; chunkX <= entry.maxChunkX; chunkX++) {
+                for (int chunkZ = entry.minChunkZ; chunkZ <= entry.maxChunkZ; chunkZ++) {
+                    long key = PlayerChunkIndex.chunkKey(chunkX, chunkZ);
+
+                    List<TrackedInstance> inChunk = chunks.get(key);
+                    if (inChunk != null) {
+                        inChunk.remove(entry);
+                        if (inChunk.isEmpty()) {
+                            chunks.remove(key);
+                        }
+                    }
+                }
+            }
+
+            if (chunks.isEmpty()) {
+                worlds.remove(entry.world);
+            }
+        }
+
+        instance.setSuspended(false);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        List<TrackedInstance> inChunk = getInChunk(event.getChunk());
+        if (inChunk == null) {
+            return;
+        }
+
+        for (TrackedInstance entry : inChunk) {
+            entry.loadedChunks++;
+            if (entry.loadedChunks == 1) {
+                entry.instance.setSuspended(false);
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        List<TrackedInstance> inChunk = getInChunk(event.getChunk());
+        if (inChunk == null) {
+            return;
+        }
+
+        for (TrackedInstance entry : inChunk) {
+            entry.loadedChunks = Math.max(0, entry.loadedChunks - 1);
+            if (entry.loadedChunks == 0) {
+                entry.instance.setSuspended(true);
+            }
+        }
+    }
+
+    private List<TrackedInstance> getInChunk(Chunk chunk) {
+        Map<Long, List<TrackedInstance>> chunks = worlds.get(chunk.getWorld());
+        if (chunks == null) {
+            return null;
+        }
+
+        return chunks.get(PlayerChunkIndex.chunkKey(chunk.getX(), chunk.getZ()));
+    }
+
+    private static class TrackedInstance {
+        private final EffectGroupInstance instance;
+        private final World world;
+        private final int minChunkX, minChunkZ, maxChunkX, maxChunkZ;
+
+        private int loadedChunks = 0;
+
+        private TrackedInstance(EffectGroupInstance instance, World world, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+            this.instance = instance;
+            this.world = world;
+            this.minChunkX = minChunkX;
+            this.minChunkZ = minChunkZ;
+            this.maxChunkX = maxChunkX;
+            this.maxChunkZ = maxChunkZ;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package wbs.particleeffects.region;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+
+/**
+ * A per-world grid of online players keyed by chunk.
+ * The grid is rebuilt lazily, at most once per tick, the first time
+ * it's queried after being invalidated by the scheduler.
+ */
+public class PlayerChunkIndex {
+
+    private final Map<World, WorldGrid> grids = new HashMap<>();
+    private boolean dirty = true;
+
+    private final Location reusableLocation = new Location(null, 0, 0, 0);
+
+    public static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Mark the grid as outdated, so it's rebuilt on next use.
+     */
+    public void invalidate() {
+        dirty = true;
+    }
+
+    private void refresh() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+
+        grids.clear();
+
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            Location loc = player.getLocation(reusableLocation);
+
+            World world = loc.getWorld();
+            WorldGrid grid = grids.get(world);
+            if (grid == null) {
+                grid = new WorldGrid();
+                grids.put(world, grid);
+            }
+
+            grid.add(player, loc.getBlockX() >> 4, loc.getBlockZ() >> 4);
+        }
+    }
+
+    /**
+     * Collect the players who may be inside the given horizontal area. Players are only
+     * filtered by chunk, so callers still need to check exact positions.
+     * @param world The world to search
+     * @param minX The lowest x coordinate of the area
+     * @param minZ The lowest z coordinate of the area
+     * @param maxX The highest x coordinate of the area
+     * @param maxZ The highest z coordinate of the area
+     * @param found The collection to add candidates to
+     */
+    public void collectCandidates(World world, double minX, double minZ, double maxX, double maxZ, Collection<Player> found) {
+        refresh();
+
+        WorldGrid grid = grids.get(world);
+        if (grid == null) {
+            return;
+        }
+
+        int minChunkX = (int) Math.floor(minX) >> 4;
+        int minChunkZ = (int) Math.floor(minZ) >> 4;
+        int maxChunkX = (int) Math.floor(maxX) >> 4;
+        int maxChunkZ = (int) Math.floor(maxZ) >> 4;
+
+        long chunkCount = (long) (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1);
+
+        // For huge areas, walking every chunk is slower than checking each player in the world.
+        if (chunkCount > grid.chunks.size()) {
+            for (Map.Entry<Long, List<Player>> entry : grid.chunks.entrySet()) {
+                long key = entry.getKey();
+                int chunkX = (int) (key >> 32);
+                int chunkZ = (int) key;
+
+                if (chunkX >= minChunkX && chunkX <= maxChunkX && chunkZ >= minChunkZ && chunkZ <= maxChunkZ) {
+                    found.addAll(entry.getValue());
+                }
+            }
+            return;
+        }
+
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                List<Player> inChunk = grid.chunks.get(chunkKey(chunkX, chunkZ));
+                if (inChunk != null) {
+                    found.addAll(inChunk);
+                }
+            }
+        }
+    }
+
+    private static class WorldGrid {
+        private final Map<Long, List<Player>> chunks = new HashMap<>();
+
+        private void add(Player player, int chunkX, int chunkZ) {
+            long key = chunkKey(chunkX, chunkZ);
+
+            List<Player> inChunk = chunks.get(key);
+            if (inChunk == null) {
+                inChunk = new ArrayList<>(2);
+                chunks.put(key, inChunk);
+            }
+
+            inChunk.add(player);
+        }
+    }
+}
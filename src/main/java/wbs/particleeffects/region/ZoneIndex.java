@@ -0,0 +1,166 @@
+package wbs.particleeffects.region;
+
+import org.bukkit.util.Vector;
+
+import java.util.*;
+
+/**
+ * A set of small boxes in one world, bucketed by the chunks they overlap.
+ * Lookups only visit the chunks around a point, so the number of zones in
+ * the set doesn't affect the cost of finding the few near a player.
+ */
+public class ZoneIndex {
+
+    private final List<Zone> zones = new ArrayList<>();
+    private final Map<Long, List<Zone>> chunks = new HashMap<>();
+
+    private int pass = 0;
+
+    public void add(Zone zone) {
+        zones.add(zone);
+
+        int minChunkX = (int) Math.floor(zone.minX) >> 4;
+        int minChunkZ = (int) Math.floor(zone.minZ) >> 4;
+        int maxChunkX = (int) Math.floor(zone.maxX) >> 4;
+        int maxChunkZ = (int) Math.floor(zone.maxZ) >> 4;
+
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                long key = PlayerChunkIndex.chunkKey(chunkX, chunkZ);
+
+                List<Zone> inChunk = chunks.get(key);
+                if (inChunk == null) {
+                    inChunk = new ArrayList<>(1);
+                    chunks.put(key, inChunk);
+                }
+                inChunk.add(zone);
+            }
+        }
+    }
+
+    public void clear() {
+        zones.clear();
+        chunks.clear();
+    }
+
+    /**
+     * @return An unmodifiable view of every zone, in the order they were added
+     */
+    public List<Zone> getZones() {
+        return Collections.unmodifiableList(zones);
+    }
+
+    public int size() {
+        return zones.size();
+    }
+
+    /**
+     * @return The number of chunks with at least one zone in them
+     */
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * Start a new round of lookups. Each zone is only accepted once per round, however many
+     * lookups find it, so callers can collect zones near several players without duplicates.
+     */
+    public void startPass() {
+        pass++;
+    }
+
+    /**
+     * Collect zones within a distance of a point that haven't already been collected this pass.
+     * @param x The x coordinate of the point
+     * @param y The y coordinate of the point
+     * @param z The z coordinate of the point
+     * @param distance How far from the point a zone's box may be. 0 for zones containing the point.
+     * @param found The collection to add zones to
+     * @return The number of zones added
+     */
+    public int collectNear(double x, double y, double z, double distance, Collection<Zone> found) {
+        int minChunkX = (int) Math.floor(x - distance) >> 4;
+        int minChunkZ = (int) Math.floor(z - distance) >> 4;
+        int maxChunkX = (int) Math.floor(x + distance) >> 4;
+        int maxChunkZ = (int) Math.floor(z + distance) >> 4;
+
+        double distanceSquared = distance * distance;
+        int added = 0;
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                List<Zone> inChunk = chunks.get(PlayerChunkIndex.chunkKey(chunkX, chunkZ));
+                if (inChunk == null) {
+                    continue;
+                }
+
+                for (Zone zone : inChunk) {
+                    if (zone.pass != pass && zone.distanceSquared(x, y, z) <= distanceSquared) {
+                        zone.pass = pass;
+                        found.add(zone);
+                        added++;
+                    }
+                }
+            }
+        }
+
+        return added;
+    }
+
+    /**
+     * One box in a {@link ZoneIndex}. Corners are sorted so min is always below max.
+     */
+    public static final class Zone {
+        private final double minX, minY, minZ;
+        private final double maxX, maxY, maxZ;
+
+        // The last lookup pass this zone was collected in
+        private int pass = -1;
+
+        public Zone(Vector corner1, Vector corner2) {
+            minX = Math.min(corner1.getX(), corner2.getX());
+            minY = Math.min(corner1.getY(), corner2.getY());
+            minZ = Math.min(corner1.getZ(), corner2.getZ());
+            maxX = Math.max(corner1.getX(), corner2.getX());
+            maxY = Math.max(corner1.getY(), corner2.getY());
+            maxZ = Math.max(corner1.getZ(), corner2.getZ());
+        }
+
+        /**
+         * @return The squared distance from a point to the nearest part of this box, or 0 if it's inside
+         */
+        public double distanceSquared(double x, double y, double z) {
+            double dx = Math.max(0, Math.max(minX - x, x - maxX));
+            double dy = Math.max(0, Math.max(minY - y, y - maxY));
+            double dz = Math.max(0, Math.max(minZ - z, z - maxZ));
+            return dx * dx + dy * dy + dz * dz;
+        }
+
+        public Vector getMinCorner() {
+            return new Vector(minX, minY, minZ);
+        }
+
+        public Vector getMaxCorner() {
+            return new Vector(maxX, maxY, maxZ);
+        }
+
+        public double getCenterX() {
+            return (minX + maxX) / 2;
+        }
+
+        public double getCenterY() {
+            return (minY + maxY) / 2;
+        }
+
+        public double getCenterZ() {
+            return (minZ + maxZ) / 2;
+        }
+
+        /**
+         * @return This zone as x1,y1,z1,x2,y2,z2, as read from config
+         */
+        @Override
+        public String toString() {
+            return minX + "," + minY + "," + minZ + "," + maxX + "," + maxY + "," + maxZ;
+        }
+    }
+}
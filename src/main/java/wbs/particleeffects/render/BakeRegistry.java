@@ -0,0 +1,58 @@
+package wbs.particleeffects.render;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keeps track of every {@link FrameBake} so their combined memory stays under the limit set in config.yml.
+ */
+public class BakeRegistry {
+
+    private final List<FrameBake> bakes = new LinkedList<>();
+    private long memoryLimit = 32L * 1024 * 1024;
+
+    /**
+     * Start a new bake.
+     * @param name The name to show for this bake in commands
+     * @param cycleLength The number of frames before the effect repeats
+     * @return The new, empty bake
+     */
+    public FrameBake create(String name, int cycleLength) {
+        FrameBake bake = new FrameBake(this, name, cycleLength);
+        bakes.add(bake);
+        return bake;
+    }
+
+    public void release(FrameBake bake) {
+        bakes.remove(bake);
+    }
+
+    public void clear() {
+        bakes.clear();
+    }
+
+    boolean canFit(long bytes) {
+        return getMemoryUsed() + bytes <= memoryLimit;
+    }
+
+    public long getMemoryUsed() {
+        long used = 0;
+        for (FrameBake bake : bakes) {
+            used += bake.getMemoryFootprint();
+        }
+        return used;
+    }
+
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    public List<FrameBake> getBakes() {
+        return Collections.unmodifiableList(bakes);
+    }
+}
@@ -0,0 +1,132 @@
+package wbs.particleeffects.render;
+
+import org.bukkit.Color;
+import org.bukkit.Particle;
+import wbs.utils.util.WbsColours;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A shared cache of {@link Particle.DustOptions}, so effects reuse the same
+ * options for a colour and size instead of creating new ones every tick.
+ * Only to be used from the main thread.
+ */
+public final class DustPalette {
+
+    private DustPalette() {}
+
+    /**
+     * The number of hues in a rainbow cycle. Must be a power of two.
+     */
+    public static final int RAINBOW_STEPS = 1024;
+
+    // Sizes are rounded to this many steps per block to keep the caches small
+    private static final float SIZE_PRECISION = 100;
+
+    // Rather than evict carefully, start over when a cache gets this big
+    private static final int MAX_CACHED = 4096;
+    private static final int MAX_RAINBOW_TABLES = 256;
+
+    private static final int[] RAINBOW_RGB = new int[RAINBOW_STEPS];
+    static {
+        for (int i = 0; i < RAINBOW_STEPS; i++) {
+            RAINBOW_RGB[i] = WbsColours.fromHSB((double) i / RAINBOW_STEPS, 1, 1).asRGB();
+        }
+    }
+
+    private static final Map<Long, Particle.DustOptions> options = new HashMap<>();
+    private static final Map<Float, RainbowTable> rainbowTables = new HashMap<>();
+
+    /**
+     * @param size The size of dust particles
+     * @return The size, rounded to the precision cached options use
+     */
+    public static float roundSize(double size) {
+        return Math.round(size * SIZE_PRECISION) / SIZE_PRECISION;
+    }
+
+    /**
+     * Pack red, green and blue into a single int, clamping each to 0-255.
+     */
+    public static int toRGB(double red, double green, double blue) {
+        return (clampChannel(red) << 16) | (clampChannel(green) << 8) | clampChannel(blue);
+    }
+
+    private static int clampChannel(double value) {
+        return Math.max(0, Math.min(255, (int) value));
+    }
+
+    /**
+     * Get the cached options for a colour and size.
+     * @param rgb The colour, as from {@link #toRGB(double, double, double)}
+     * @param size The size, as from {@link #roundSize(double)}
+     * @return The shared options for that colour and size
+     */
+    public static Particle.DustOptions get(int rgb, float size) {
+        long key = ((long) rgb << 32) | (Float.floatToIntBits(size) & 0xFFFFFFFFL);
+
+        Particle.DustOptions cached = options.get(key);
+        if (cached == null) {
+            if (options.size() >= MAX_CACHED) {
+                options.clear();
+            }
+
+            cached = new Particle.DustOptions(Color.fromRGB(rgb), size);
+            options.put(key, cached);
+        }
+
+        return cached;
+    }
+
+    /**
+     * Get the rainbow lookup table for a size of dust.
+     * @param size The size, as from {@link #roundSize(double)}
+     * @return The shared table for that size
+     */
+    public static RainbowTable getRainbow(float size) {
+        RainbowTable table = rainbowTables.get(size);
+        if (table == null) {
+            if (rainbowTables.size() >= MAX_RAINBOW_TABLES) {
+                rainbowTables.clear();
+            }
+
+            table = new RainbowTable(size);
+            rainbowTables.put(size, table);
+        }
+
+        return table;
+    }
+
+    /**
+     * The full cycle of hues for one size of dust, filled in as each hue is first used.
+     */
+    public static final class RainbowTable {
+        private final float size;
+        private final Particle.DustOptions[] entries = new Particle.DustOptions[RAINBOW_STEPS];
+
+        private RainbowTable(float size) {
+            this.size = size;
+        }
+
+        /**
+         * @param hue The hue, where each whole number is a full cycle
+         * @return The options for the nearest step to that hue
+         */
+        public Particle.DustOptions get(double hue) {
+            int step = (int) ((hue - Math.floor(hue)) * RAINBOW_STEPS) & (RAINBOW_STEPS - 1);
+
+            Particle.DustOptions entry = entries[step];
+            if (entry == null) {
+                entry = new Particle.DustOptions(Color.fromRGB(RAINBOW_RGB[step]), size);
+                entries[step] = entry;
+            }
+
+            return entry;
+        }
+
+        public float getSize() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package wbs.particleeffects.render;
+
+/**
+ * Every frame of a periodic effect, recorded the first time through its cycle
+ * so later cycles are a lookup instead of a rebuild.
+ */
+public class FrameBake {
+
+    private final BakeRegistry registry;
+    private final String name;
+    private final ParticleFrame[] frames;
+
+    private int framesBaked = 0;
+    private long memoryFootprint = 0;
+    private boolean abandoned = false;
+
+    FrameBake(BakeRegistry registry, String name, int cycleLength) {
+        this.registry = registry;
+        this.name = name;
+        this.frames = new ParticleFrame[cycleLength];
+    }
+
+    /**
+     * @param index The position in the cycle
+     * @return The frame at that position, or null if it hasn't been baked yet
+     */
+    public ParticleFrame get(int index) {
+        return frames[index];
+    }
+
+    /**
+     * Store a frame, if there's room for it. If there isn't, the whole bake is
+     * abandoned and its memory released, and the effect should carry on building live.
+     * @param index The position in the cycle
+     * @param frame The frame at that position
+     * @return True if the frame was stored
+     */
+    public boolean put(int index, ParticleFrame frame) {
+        if (abandoned) {
+            return false;
+        }
+
+        // Once the first frame is known, check the whole cycle is likely to fit before going further
+        long needed = frame.getMemoryFootprint();
+        if (framesBaked == 0) {
+            needed *= frames.length;
+        }
+
+        if (!registry.canFit(needed)) {
+            abandon();
+            return false;
+        }
+
+        frames[index] = frame;
+        framesBaked++;
+        memoryFootprint += frame.getMemoryFootprint();
+        return true;
+    }
+
+    /**
+     * Count memory kept alongside this bake's frames, such as their thinned copies, if there's room for it.
+     * @param bytes The memory to add
+     * @return True if it fit, or false if it should not be kept
+     */
+    boolean charge(long bytes) {
+        if (abandoned || !registry.canFit(bytes)) {
+            return false;
+        }
+
+        memoryFootprint += bytes;
+        return true;
+    }
+
+    private void abandon() {
+        abandoned = true;
+        framesBaked = 0;
+        memoryFootprint = 0;
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = null;
+        }
+    }
+
+    /**
+     * @return True if this bake ran out of memory and its effect builds live instead
+     */
+    public boolean isAbandoned() {
+        return abandoned;
+    }
+
+    public boolean isComplete() {
+        return framesBaked == frames.length;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCycleLength() {
+        return frames.length;
+    }
+
+    public int getFramesBaked() {
+        return framesBaked;
+    }
+
+    public long getMemoryFootprint() {
+        return memoryFootprint;
+    }
+}
@@ -0,0 +1,148 @@
+package wbs.particleeffects.render;
+
+import org.bukkit.Location;
+import org.bukkit.Particle;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import wbs.utils.util.particles.WbsParticleEffect;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+
+/**
+ * Captures what a {@link WbsParticleEffect} spawns into a {@link ParticleFrame}.
+ * <p>
+ * WbsParticleEffect doesn't expose the points it builds, so this plays the effect to
+ * a stand-in {@link Player} that writes down each spawnParticle call instead of sending it.
+ * Nothing is sent to any client, and no Bukkit state is touched while recording, so
+ * separate recorders can be used off the main thread.
+ */
+public final class FrameRecorder {
+
+    private static final UUID RECORDER_ID = new UUID(0, 0);
+
+    private final ParticleFrame.Builder builder = new ParticleFrame.Builder();
+    private final Player recordingPlayer;
+    private final Location origin = new Location(null, 0, 0, 0);
+
+    public FrameRecorder() {
+        recordingPlayer = (Player) Proxy.newProxyInstance(
+                Player.class.getClassLoader(),
+                new Class<?>[] { Player.class },
+                new RecordingHandler());
+    }
+
+    /**
+     * Play an already-built effect into a frame.
+     * @param effect The effect to record
+     * @param particle The particle the effect will be played with
+     * @param world The world the effect will play in. Never modified.
+     * @return The recorded frame, relative to the point the effect was played at
+     */
+    public ParticleFrame record(WbsParticleEffect effect, Particle particle, World world) {
+        builder.clear();
+
+        origin.setWorld(world);
+        origin.setX(0);
+        origin.setY(0);
+        origin.setZ(0);
+
+        effect.play(particle, origin, recordingPlayer);
+
+        return builder.build();
+    }
+
+    private class RecordingHandler implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "spawnParticle":
+                    recordSpawn(args);
+                    return null;
+                case "getUniqueId":
+                    return RECORDER_ID;
+                case "getWorld":
+                    return origin.getWorld();
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "FrameRecorder";
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+
+        /*
+         * Handles every Player#spawnParticle overload:
+         * (particle, location | x, y, z, count, [offsetX, offsetY, offsetZ, [extra]], [data])
+         */
+        private void recordSpawn(Object[] args) {
+            int index = 1;
+
+            double x, y, z;
+            if (args[index] instanceof Location) {
+                Location loc = (Location) args[index];
+                x = loc.getX();
+                y = loc.getY();
+                z = loc.getZ();
+                index++;
+            } else {
+                x = (Double) args[index];
+                y = (Double) args[index + 1];
+                z = (Double) args[index + 2];
+                index += 3;
+            }
+
+            int count = (Integer) args[index];
+            index++;
+
+            double offsetX = 0, offsetY = 0, offsetZ = 0;
+            if (args.length - index >= 3 && args[index] instanceof Double) {
+                offsetX = (Double) args[index];
+                offsetY = (Double) args[index + 1];
+                offsetZ = (Double) args[index + 2];
+                index += 3;
+            }
+
+            // Particles default to a speed of 1 when it's not given
+            double speed = 1;
+            if (args.length - index >= 1 && args[index] instanceof Double) {
+                speed = (Double) args[index];
+            }
+
+            builder.add(x, y, z, count, offsetX, offsetY, offsetZ, speed);
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return (char) 0;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0F;
+        }
+        return 0D;
+    }
+}
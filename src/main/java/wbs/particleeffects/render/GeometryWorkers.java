@@ -0,0 +1,176 @@
+package wbs.particleeffects.render;
+
+import org.bukkit.Particle;
+import org.bukkit.World;
+import wbs.utils.util.particles.WbsParticleEffect;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds effects' geometry on worker threads, one run ahead of the main thread.
+ * <p>
+ * An effect hands its next build to a worker as soon as it has played the current one,
+ * so by the time it's due again its points are already recorded into a {@link ParticleFrame}
+ * and the main thread only has to send them. Each effect has at most one build in flight,
+ * and never touches its {@link WbsParticleEffect} until that build is collected, so the
+ * effect is only ever used by one thread at a time.
+ * <p>
+ * Workers only build and record; the world is passed through to the recorder but never
+ * read, and nothing else in Bukkit is called off the main thread.
+ */
+public class GeometryWorkers {
+
+    private final ThreadLocal<FrameRecorder> recorders = new ThreadLocal<FrameRecorder>() {
+        @Override
+        protected FrameRecorder initialValue() {
+            return new FrameRecorder();
+        }
+    };
+
+    private ExecutorService executor;
+    private int threads = 0;
+
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+
+    /**
+     * Set how many worker threads to use, replacing any existing workers.
+     * Builds already handed to the old workers still finish.
+     * @param threads The number of threads, or 0 to build on the main thread
+     */
+    public void setThreads(int threads) {
+        threads = Math.max(0, threads);
+        if (threads == this.threads) {
+            return;
+        }
+
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+
+        this.threads = threads;
+        if (threads > 0) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "WbsParticleEffects-Geometry-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Build an effect and record it on a worker.
+     * @param effect The effect to build. Must not be used again until the returned build is collected.
+     * @param amount The amount to build the effect with, or -1 to leave it as it is
+     * @param particle The particle the effect will be played with
+     * @param world The world the effect will play in. Never read.
+     * @return The build in progress
+     */
+    public PendingFrame submit(final WbsParticleEffect effect, final int amount, final Particle particle, final World world) {
+        FutureTask<ParticleFrame> task = new FutureTask<>(() -> {
+            if (amount != -1 && amount != effect.getAmount()) {
+                effect.setAmount(amount);
+            }
+
+            effect.build();
+            return recorders.get().record(effect, particle, world);
+        });
+
+        if (executor == null) {
+            // Disabled since the caller checked; build here rather than leave the effect waiting
+            task.run();
+        } else {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+
+        builds.incrementAndGet();
+        return new PendingFrame(task);
+    }
+
+    /**
+     * Stop the workers, letting builds in progress finish.
+     */
+    public void shutdown() {
+        setThreads(0);
+    }
+
+    /**
+     * @return The number of builds handed to workers since startup
+     */
+    public long getBuilds() {
+        return builds.get();
+    }
+
+    /**
+     * @return The number of builds the main thread had to wait for, because they weren't ready when due
+     */
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    /**
+     * A build handed to a worker, collected on the main thread when its effect is next due.
+     */
+    public class PendingFrame {
+        private final FutureTask<ParticleFrame> task;
+
+        private PendingFrame(FutureTask<ParticleFrame> task) {
+            this.task = task;
+        }
+
+        public boolean isDone() {
+            return task.isDone();
+        }
+
+        /**
+         * Get the recorded frame, waiting for the worker if it isn't finished.
+         * @return The frame
+         * @throws RuntimeException If the build threw one
+         */
+        public ParticleFrame collect() {
+            if (!task.isDone()) {
+                stalls.incrementAndGet();
+            }
+
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return task.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
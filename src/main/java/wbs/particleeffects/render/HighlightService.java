@@ -0,0 +1,175 @@
+package wbs.particleeffects.render;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Particle;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.util.Vector;
+import wbs.particleeffects.WbsParticleEffects;
+import wbs.particleeffects.instance.AmbientEffectGroupInstance;
+import wbs.particleeffects.session.PlayerData;
+import wbs.utils.util.particles.CuboidParticleEffect;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Draws the outline of every highlighted ambient instance from a single task.
+ * <p>
+ * Which player sees which outline is kept in their {@link PlayerData}. Each outline is
+ * built and recorded once, and only rebuilt after its instance's area changes, so
+ * however many players highlight however many instances, each run only sends
+ * the recorded points. The task stops itself when nothing is highlighted.
+ */
+public class HighlightService {
+
+    private static final int INTERVAL = 5; // In ticks
+    private static final Particle PARTICLE = Particle.END_ROD;
+
+    private final WbsParticleEffects plugin;
+
+    private final CuboidParticleEffect outlineEffect = new CuboidParticleEffect();
+    private final FrameRecorder recorder = new FrameRecorder();
+    private final Map<AmbientEffectGroupInstance, Outline> outlines = new HashMap<>();
+
+    private int taskId = -1;
+
+    public HighlightService(WbsParticleEffects plugin) {
+        this.plugin = plugin;
+
+        outlineEffect.setAmount(2);
+        outlineEffect.setScaleAmount(true);
+    }
+
+    /**
+     * Show or hide an instance's outline to a player.
+     * @param player The player to show the outline to
+     * @param instance The instance to outline
+     * @return The new state of the highlight (true = visible, false = invisible)
+     */
+    public boolean toggle(Player player, AmbientEffectGroupInstance instance) {
+        PlayerData data = plugin.sessions.get(player);
+
+        if (data.removeHighlight(instance)) {
+            return false;
+        }
+
+        data.addHighlight(instance);
+        start();
+        return true;
+    }
+
+    /**
+     * Rebuild an instance's outline the next time it's drawn. Call whenever its area changes.
+     * @param instance The instance that changed
+     */
+    public void invalidate(AmbientEffectGroupInstance instance) {
+        outlines.remove(instance);
+    }
+
+    /**
+     * Stop every player's highlight of an instance, such as when it's disabled.
+     * @param instance The instance to stop highlighting
+     */
+    public void remove(AmbientEffectGroupInstance instance) {
+        plugin.sessions.removeHighlights(instance);
+        outlines.remove(instance);
+    }
+
+    /**
+     * @return The number of outlines currently built
+     */
+    public int getCachedOutlineCount() {
+        return outlines.size();
+    }
+
+    public boolean isRunning() {
+        return taskId != -1;
+    }
+
+    private void start() {
+        if (taskId != -1) {
+            return;
+        }
+
+        taskId = new BukkitRunnable() {
+            @Override
+            public void run() {
+                render();
+            }
+        }.runTaskTimer(plugin, 0, INTERVAL).getTaskId();
+    }
+
+    /**
+     * Stop drawing, and forget every built outline.
+     */
+    public void stop() {
+        if (taskId != -1) {
+            Bukkit.getScheduler().cancelTask(taskId);
+            taskId = -1;
+        }
+
+        outlines.clear();
+    }
+
+    private void render() {
+        boolean anyHighlights = false;
+
+        for (PlayerData data : plugin.sessions.getSessions()) {
+            if (data.getHighlights().isEmpty()) {
+                continue;
+            }
+
+            Player player = Bukkit.getPlayer(data.getUniqueId());
+            if (player == null) {
+                continue;
+            }
+            anyHighlights = true;
+
+            World playerWorld = player.getWorld();
+            for (AmbientEffectGroupInstance instance : data.getHighlights()) {
+                Outline outline = getOutline(instance);
+                if (outline.center.getWorld() == playerWorld) {
+                    outline.frame.play(PARTICLE, null, outline.center, player);
+                }
+            }
+        }
+
+        if (!anyHighlights) {
+            stop();
+        }
+    }
+
+    private Outline getOutline(AmbientEffectGroupInstance instance) {
+        Outline outline = outlines.get(instance);
+        if (outline == null) {
+            Vector min = instance.getMinCorner();
+            Vector max = instance.getMaxCorner();
+
+            outlineEffect.setX(max.getX() - min.getX());
+            outlineEffect.setY(max.getY() - min.getY());
+            outlineEffect.setZ(max.getZ() - min.getZ());
+            outlineEffect.build();
+
+            World world = instance.getWorld();
+            Location center = min.add(max).multiply(0.5).toLocation(world);
+
+            outline = new Outline(recorder.record(outlineEffect, PARTICLE, world), center);
+            outlines.put(instance, outline);
+        }
+
+        return outline;
+    }
+
+    private static class Outline {
+        private final ParticleFrame frame;
+        private final Location center;
+
+        private Outline(ParticleFrame frame, Location center) {
+            this.frame = frame;
+            this.center = center;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package wbs.particleeffects.render;
+
+import java.util.Arrays;
+
+/**
+ * A minimal open-addressing multimap of longs to longs, so checking for duplicate particles doesn't box every key.
+ * Each key can hold several values; walk them with {@link #first(long)} and {@link #next(long, int)}.
+ */
+final class LongLongMultimap {
+
+    // 0 marks an empty slot, so a real 0 is stored as this instead
+    private static final long ZERO_KEY = 0x9E3779B97F4A7C15L;
+
+    private long[] keys = new long[256];
+    private long[] values = new long[256];
+    private int size = 0;
+
+    /**
+     * Add a value for a key, alongside any already stored for it.
+     */
+    void put(long key, long value) {
+        key = storedKey(key);
+
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+
+        int mask = keys.length - 1;
+        int index = mix(key) & mask;
+        while (keys[index] != 0) {
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+        size++;
+    }
+
+    /**
+     * @return The slot of the first value stored for the key, or -1 if there are none
+     */
+    int first(long key) {
+        key = storedKey(key);
+        return find(key, mix(key) & (keys.length - 1));
+    }
+
+    /**
+     * @param slot A slot returned for the same key by {@link #first(long)} or this, with nothing put since
+     * @return The slot of the key's next value, or -1 if there are no more
+     */
+    int next(long key, int slot) {
+        return find(storedKey(key), (slot + 1) & (keys.length - 1));
+    }
+
+    long valueAt(int slot) {
+        return values[slot];
+    }
+
+    void clear() {
+        if (size > 0) {
+            Arrays.fill(keys, 0);
+            size = 0;
+        }
+    }
+
+    // Nothing is ever removed, so every value for a key is in the run of filled slots after its hash
+    private int find(long key, int index) {
+        int mask = keys.length - 1;
+        while (keys[index] != 0) {
+            if (keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static long storedKey(long key) {
+        return key == 0 ? ZERO_KEY : key;
+    }
+
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
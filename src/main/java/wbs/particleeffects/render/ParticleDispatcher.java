@@ -0,0 +1,230 @@
+package wbs.particleeffects.render;
+
+import org.bukkit.Location;
+import org.bukkit.Particle;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import wbs.particleeffects.region.PlayerChunkIndex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects every frame each player should see during a tick, across all instances
+ * and effects, and sends them together when the tick ends.
+ * <p>
+ * While sending, points that would look identical are only sent once, and players
+ * with more than the per-player cap have their particles thinned evenly rather than
+ * cut off, so no single effect loses out.
+ */
+public class ParticleDispatcher {
+
+    // Vanilla only sends particles within this range, unless forced
+    private static final double VIEW_RANGE = 32;
+    private static final double FORCED_VIEW_RANGE = 512;
+
+    private final PlayerChunkIndex playerIndex;
+
+    private boolean enabled = true;
+    private int maxParticlesPerPlayer = 2000; // 0 = unlimited
+
+    private final Map<Player, List<QueuedFrame>> batches = new HashMap<>();
+    private int queuedPoints = 0;
+    // Point keys sent this batch, to where each distinct point with that key is in the batch
+    private final LongLongMultimap sent = new LongLongMultimap();
+
+    // Reused between calls to avoid allocating per tick or per player
+    private final List<Player> nearbyPlayers = new ArrayList<>();
+    private final Location playerLocation = new Location(null, 0, 0, 0);
+
+    public ParticleDispatcher(PlayerChunkIndex playerIndex) {
+        this.playerIndex = playerIndex;
+    }
+
+    /**
+     * @return True if effects should queue frames here instead of playing directly
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param maxParticlesPerPlayer The most points to send each player per tick, or 0 for no limit
+     */
+    public void setMaxParticlesPerPlayer(int maxParticlesPerPlayer) {
+        this.maxParticlesPerPlayer = Math.max(0, maxParticlesPerPlayer);
+    }
+
+    public int getMaxParticlesPerPlayer() {
+        return maxParticlesPerPlayer;
+    }
+
+    /**
+     * Queue a frame to be sent to a player at the end of this tick.
+     * @param player The player to send the frame to
+     * @param frame The frame to send
+     * @param particle The particle to spawn
+     * @param data The particle's data, or null if it takes none
+     * @param origin Where to play the frame. Not kept, so may be reused by the caller.
+     */
+    public void queue(Player player, ParticleFrame frame, Particle particle, Object data, Location origin) {
+        if (frame.isEmpty()) {
+            return;
+        }
+
+        List<QueuedFrame> batch = batches.get(player);
+        if (batch == null) {
+            batch = new ArrayList<>();
+            batches.put(player, batch);
+        }
+
+        batch.add(new QueuedFrame(frame, particle, data, origin.getX(), origin.getY(), origin.getZ()));
+        queuedPoints += frame.size();
+    }
+
+    /**
+     * @return The number of points queued since the last flush, across all players, before
+     * removing duplicates or applying the per-player cap
+     */
+    public int getQueuedPoints() {
+        return queuedPoints;
+    }
+
+    /**
+     * Queue a frame for everyone who would see it if it were spawned in the world directly.
+     * @param frame The frame to send
+     * @param particle The particle to spawn
+     * @param data The particle's data, or null if it takes none
+     * @param origin Where to play the frame. Not kept, so may be reused by the caller.
+     * @param force Whether the particles are forced to show from further away
+     * @return The number of players the frame was queued for
+     */
+    public int queueNearby(ParticleFrame frame, Particle particle, Object data, Location origin, boolean force) {
+        World world = origin.getWorld();
+        if (world == null || frame.isEmpty()) {
+            return 0;
+        }
+
+        double range = (force ? FORCED_VIEW_RANGE : VIEW_RANGE) + frame.getRadius();
+
+        nearbyPlayers.clear();
+        playerIndex.collectCandidates(world,
+                origin.getX() - range, origin.getZ() - range,
+                origin.getX() + range, origin.getZ() + range,
+                nearbyPlayers);
+
+        double rangeSquared = range * range;
+        int queued = 0;
+        for (Player player : nearbyPlayers) {
+            if (player.getLocation(playerLocation).distanceSquared(origin) <= rangeSquared) {
+                queue(player, frame, particle, data, origin);
+                queued++;
+            }
+        }
+
+        return queued;
+    }
+
+    /**
+     * Send everything queued this tick, and clear the queue.
+     * @return The number of particles actually sent
+     */
+    public int flush() {
+        int sentCount = 0;
+        for (Map.Entry<Player, List<QueuedFrame>> entry : batches.entrySet()) {
+            Player player = entry.getKey();
+            if (!player.isOnline()) {
+                continue;
+            }
+
+            sentCount += send(player, entry.getValue());
+        }
+
+        batches.clear();
+        queuedPoints = 0;
+        return sentCount;
+    }
+
+    private int send(Player player, List<QueuedFrame> batch) {
+        int total = 0;
+        for (QueuedFrame queued : batch) {
+            total += queued.frame.size();
+        }
+
+        // Keep an even fraction of every frame when over the cap
+        double keepRatio = 1;
+        if (maxParticlesPerPlayer > 0 && total > maxParticlesPerPlayer) {
+            keepRatio = (double) maxParticlesPerPlayer / total;
+        }
+        double keepAccumulator = 0;
+
+        int sentCount = 0;
+        sent.clear();
+        for (int queuedIndex = 0; queuedIndex < batch.size(); queuedIndex++) {
+            QueuedFrame queued = batch.get(queuedIndex);
+            ParticleFrame frame = queued.frame;
+            long frameKey = queued.particle.ordinal() * 31L + System.identityHashCode(queued.data);
+
+            for (int i = 0; i < frame.size(); i++) {
+                if (keepRatio < 1) {
+                    keepAccumulator += keepRatio;
+                    if (keepAccumulator < 1) {
+                        continue;
+                    }
+                    keepAccumulator -= 1;
+                }
+
+                long key = frame.getPointKey(i, queued.x, queued.y, queued.z) * 31 + frameKey;
+                if (!wasSent(batch, key, queued, i)) {
+                    sent.put(key, ((long) queuedIndex << 32) | i);
+                    frame.spawn(i, queued.particle, queued.data, queued.x, queued.y, queued.z, player);
+                    sentCount++;
+                }
+            }
+        }
+
+        return sentCount;
+    }
+
+    private boolean wasSent(List<QueuedFrame> batch, long key, QueuedFrame queued, int index) {
+        // Keys can collide, so check against every point sent with this key, not just the first
+        for (int slot = sent.first(key); slot != -1; slot = sent.next(key, slot)) {
+            if (isSamePoint(batch, sent.valueAt(slot), queued, index)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSamePoint(List<QueuedFrame> batch, long ref, QueuedFrame queued, int index) {
+        QueuedFrame other = batch.get((int) (ref >>> 32));
+        if (other.particle != queued.particle || other.data != queued.data) {
+            return false;
+        }
+
+        return queued.frame.isSamePoint(index, queued.x, queued.y, queued.z,
+                other.frame, (int) ref, other.x, other.y, other.z);
+    }
+
+    private static class QueuedFrame {
+        private final ParticleFrame frame;
+        private final Particle particle;
+        private final Object data;
+        private final double x, y, z;
+
+        private QueuedFrame(ParticleFrame frame, Particle particle, Object data, double x, double y, double z) {
+            this.frame = frame;
+            this.particle = particle;
+            this.data = data;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package wbs.particleeffects.render;
+
+import org.bukkit.Location;
+import org.bukkit.Particle;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * The particles one build of an effect spawns, relative to where it was played.
+ * The particle type and data are supplied at playback, so a frame only holds geometry
+ * and can be replayed with changing colours.
+ */
+public final class ParticleFrame {
+
+    // x, y, z, offset x, offset y, offset z, speed, count
+    static final int STRIDE = 8;
+
+    // Points are rounded to this fraction of a block when checking for duplicates
+    private static final double DUPLICATE_PRECISION = 32;
+
+    // Detail is reduced in steps of 1/THIN_STEPS of the points
+    private static final int THIN_STEPS = 16;
+
+    private final float[] points;
+    private final int size;
+    private final double radius;
+
+    // Thinned copies of this frame, made when first needed
+    private ParticleFrame[] thinned;
+
+    private ParticleFrame(float[] points, int size, double radius) {
+        this.points = points;
+        this.size = size;
+        this.radius = radius;
+    }
+
+    /**
+     * @return The number of spawn calls in this frame
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return Roughly how many bytes this frame takes up in memory
+     */
+    public long getMemoryFootprint() {
+        return 32 + (long) points.length * Float.BYTES;
+    }
+
+    /**
+     * @return The furthest any point in this frame is from the origin
+     */
+    public double getRadius() {
+        return radius;
+    }
+
+    /**
+     * Get a copy of this frame with points spread evenly through it removed. Copies are
+     * kept, so repeatedly thinning a frame that's replayed is cheap.
+     * @param fraction The fraction of points to keep, rounded up to the nearest sixteenth
+     * @return The thinned frame, or this frame if nothing would be removed
+     */
+    public ParticleFrame thin(double fraction) {
+        return thin(fraction, null);
+    }
+
+    /**
+     * Get a thinned copy of a frame stored in a bake. Copies are only kept while the bake
+     * has memory to spare for them, and are charged to it; otherwise they're made fresh each time.
+     * @param fraction The fraction of points to keep, rounded up to the nearest sixteenth
+     * @param bake The bake holding this frame, or null if it isn't baked
+     * @return The thinned frame, or this frame if nothing would be removed
+     */
+    public ParticleFrame thin(double fraction, @Nullable FrameBake bake) {
+        int steps = (int) Math.ceil(fraction * THIN_STEPS);
+        if (steps >= THIN_STEPS || size <= 1) {
+            return this;
+        }
+        steps = Math.max(1, steps);
+
+        ParticleFrame frame = thinned == null ? null : thinned[steps - 1];
+        if (frame == null) {
+            int keep = Math.max(1, (int) Math.ceil((double) size * steps / THIN_STEPS));
+            if (keep >= size) {
+                frame = this;
+            } else {
+                float[] keptPoints = new float[keep * STRIDE];
+                for (int i = 0; i < keep; i++) {
+                    int source = (int) ((long) i * size / keep);
+                    System.arraycopy(points, source * STRIDE, keptPoints, i * STRIDE, STRIDE);
+                }
+                frame = new ParticleFrame(keptPoints, keep, radius);
+            }
+
+            if (bake == null || frame == this || bake.charge(frame.getMemoryFootprint())) {
+                if (thinned == null) {
+                    thinned = new ParticleFrame[THIN_STEPS - 1];
+                }
+                thinned[steps - 1] = frame;
+            }
+        }
+
+        return frame;
+    }
+
+    public double getX(int index) {
+        return points[index * STRIDE];
+    }
+
+    public double getY(int index) {
+        return points[index * STRIDE + 1];
+    }
+
+    public double getZ(int index) {
+        return points[index * STRIDE + 2];
+    }
+
+    /**
+     * Spawn a single point of this frame for a player.
+     * @param index The point to spawn
+     * @param particle The particle to spawn
+     * @param data The particle's data, or null if it takes none
+     * @param originX The x coordinate the frame is played at
+     * @param originY The y coordinate the frame is played at
+     * @param originZ The z coordinate the frame is played at
+     * @param player The player to show the particle to
+     */
+    public void spawn(int index, Particle particle, Object data, double originX, double originY, double originZ, Player player) {
+        int base = index * STRIDE;
+        player.spawnParticle(particle,
+                originX + points[base], originY + points[base + 1], originZ + points[base + 2],
+                (int) points[base + 7],
+                points[base + 3], points[base + 4], points[base + 5],
+                points[base + 6],
+                data);
+    }
+
+    /**
+     * Get a key identifying a point once played at an origin. Points that would look the
+     * same always share a key, but different points can too; use {@link #isSamePoint} to tell.
+     * @param index The point to get a key for
+     * @param originX The x coordinate the frame is played at
+     * @param originY The y coordinate the frame is played at
+     * @param originZ The z coordinate the frame is played at
+     * @return A hash of the point's rounded position and its spawn options
+     */
+    public long getPointKey(int index, double originX, double originY, double originZ) {
+        int base = index * STRIDE;
+
+        long key = Math.round((originX + points[base]) * DUPLICATE_PRECISION);
+        key = key * 31 + Math.round((originY + points[base + 1]) * DUPLICATE_PRECISION);
+        key = key * 31 + Math.round((originZ + points[base + 2]) * DUPLICATE_PRECISION);
+        for (int i = 3; i < STRIDE; i++) {
+            key = key * 31 + Float.floatToIntBits(points[base + i]);
+        }
+
+        return key;
+    }
+
+    /**
+     * Check whether two points would look the same once played, by the same measure as {@link #getPointKey}.
+     * @param index The point in this frame
+     * @param originX The x coordinate this frame is played at
+     * @param originY The y coordinate this frame is played at
+     * @param originZ The z coordinate this frame is played at
+     * @param other The frame holding the other point, which may be this one
+     * @param otherIndex The point in the other frame
+     * @param otherX The x coordinate the other frame is played at
+     * @param otherY The y coordinate the other frame is played at
+     * @param otherZ The z coordinate the other frame is played at
+     * @return True if the points round to the same position and have the same spawn options
+     */
+    public boolean isSamePoint(int index, double originX, double originY, double originZ,
+                               ParticleFrame other, int otherIndex, double otherX, double otherY, double otherZ) {
+        int base = index * STRIDE;
+        int otherBase = otherIndex * STRIDE;
+
+        if (Math.round((originX + points[base]) * DUPLICATE_PRECISION) != Math.round((otherX + other.points[otherBase]) * DUPLICATE_PRECISION)
+                || Math.round((originY + points[base + 1]) * DUPLICATE_PRECISION) != Math.round((otherY + other.points[otherBase + 1]) * DUPLICATE_PRECISION)
+                || Math.round((originZ + points[base + 2]) * DUPLICATE_PRECISION) != Math.round((otherZ + other.points[otherBase + 2]) * DUPLICATE_PRECISION)) {
+            return false;
+        }
+
+        for (int i = 3; i < STRIDE; i++) {
+            if (Float.floatToIntBits(points[base + i]) != Float.floatToIntBits(other.points[otherBase + i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Spawn this frame's particles for a single player.
+     * @param particle The particle to spawn
+     * @param data The particle's data, or null if it takes none
+     * @param origin Where to play the frame
+     * @param player The player to show the particles to
+     * @return The number of spawn calls made
+     */
+    public int play(Particle particle, Object data, Location origin, Player player) {
+        double originX = origin.getX();
+        double originY = origin.getY();
+        double originZ = origin.getZ();
+
+        for (int i = 0; i < size; i++) {
+            spawn(i, particle, data, originX, originY, originZ, player);
+        }
+
+        return size;
+    }
+
+    /**
+     * Spawn this frame's particles for everyone nearby.
+     * @param particle The particle to spawn
+     * @param data The particle's data, or null if it takes none
+     * @param origin Where to play the frame
+     * @param force Whether to show particles to players far away
+     * @return The number of spawn calls made
+     */
+    public int play(Particle particle, Object data, Location origin, boolean force) {
+        World world = origin.getWorld();
+        if (world == null) {
+            return 0;
+        }
+
+        double originX = origin.getX();
+        double originY = origin.getY();
+        double originZ = origin.getZ();
+
+        for (int i = 0; i < size; i++) {
+            int base = i * STRIDE;
+            world.spawnParticle(particle,
+                    originX + points[base], originY + points[base + 1], originZ + points[base + 2],
+                    (int) points[base + 7],
+                    points[base + 3], points[base + 4], points[base + 5],
+                    points[base + 6],
+                    data, force);
+        }
+
+        return size;
+    }
+
+    /**
+     * Accumulates spawn calls into a {@link ParticleFrame}.
+     */
+    public static final class Builder {
+        private float[] points = new float[STRIDE * 16];
+        private int size = 0;
+
+        public void add(double x, double y, double z, int count, double offsetX, double offsetY, double offsetZ, double speed) {
+            if ((size + 1) * STRIDE > points.length) {
+                points = Arrays.copyOf(points, points.length * 2);
+            }
+
+            int base = size * STRIDE;
+            points[base] = (float) x;
+            points[base + 1] = (float) y;
+            points[base + 2] = (float) z;
+            points[base + 3] = (float) offsetX;
+            points[base + 4] = (float) offsetY;
+            points[base + 5] = (float) offsetZ;
+            points[base + 6] = (float) speed;
+            points[base + 7] = count;
+            size++;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        public ParticleFrame build() {
+            double radiusSquared = 0;
+            for (int i = 0; i < size; i++) {
+                int base = i * STRIDE;
+                double x = points[base];
+                double y = points[base + 1];
+                double z = points[base + 2];
+                radiusSquared = Math.max(radiusSquared, x * x + y * y + z * z);
+            }
+
+            return new ParticleFrame(Arrays.copyOf(points, size * STRIDE), size, Math.sqrt(radiusSquared));
+        }
+    }
+}
@@ -0,0 +1,539 @@
+package wbs.particleeffects.scheduler;
+
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.jetbrains.annotations.Nullable;
+import wbs.particleeffects.PersistentEffect;
+import wbs.particleeffects.WbsParticleEffects;
+import wbs.particleeffects.instance.EffectGroupInstance;
+import wbs.particleeffects.profile.EffectStats;
+import wbs.particleeffects.region.PlayerChunkIndex;
+import wbs.particleeffects.render.ParticleDispatcher;
+
+import java.util.*;
+
+/**
+ * Drives every running {@link PersistentEffect} from a single repeating task.
+ * Effects are kept in one timing wheel per interval, so each tick only visits
+ * the effects that are due on that tick.
+ * <p>
+ * Due effects are queued per {@link EffectGroupInstance} and run round-robin
+ * (one effect per instance per turn) until the {@link TickBudget} runs out.
+ * Anything left over stays queued for the next tick, in the same rotation,
+ * so no single instance can starve the others.
+ * <p>
+ * Each effect's slot in its wheel is picked when it's added, as the one that keeps the
+ * busiest tick lightest given every other wheel's load. Load is the measured time each
+ * effect takes to run, or an estimate from its particle count until it's run.
+ */
+public class EffectScheduler {
+
+    private final WbsParticleEffects plugin;
+
+    private final Map<Integer, TimingWheel> wheels = new TreeMap<>();
+    private final Map<PersistentEffect, ScheduledEffect> scheduled = new HashMap<>();
+
+    // Slots are balanced over this many ticks at most, when intervals don't line up sooner
+    private static final int MAX_BALANCE_HORIZON = 1200;
+    // How quickly an effect's cost follows its latest run
+    private static final double COST_SMOOTHING = 0.1;
+    // Running average cost of a particle, to estimate effects that haven't run yet
+    private double nanosPerParticle = 1000;
+    // Running average cost of sending one batched point when the dispatcher flushes
+    private double flushNanosPerPoint = 1000;
+
+    // Effects registered while ticking are added once the tick finishes
+    private final List<ScheduledEffect> pendingAdditions = new LinkedList<>();
+
+    private final TickBudget budget = new TickBudget();
+    private final LodController lod = new LodController();
+    private final PlayerChunkIndex playerIndex = new PlayerChunkIndex();
+    private final ParticleDispatcher dispatcher = new ParticleDispatcher(playerIndex);
+    private final Map<EffectGroupInstance, InstanceQueue> queues = new HashMap<>();
+    private final Deque<InstanceQueue> rotation = new ArrayDeque<>();
+    private int queuedCount = 0;
+    // Queued this tick and not yet run; whatever's left at the end of the tick was deferred for the first time
+    private int newlyQueued = 0;
+
+    private int taskId = -1;
+    private long currentTick = 0;
+    private boolean ticking = false;
+
+    public EffectScheduler(WbsParticleEffects plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Start the task that drives all registered effects.
+     * @return True if the task was started, false if it was already running.
+     */
+    public boolean start() {
+        if (taskId != -1) {
+            return false;
+        }
+
+        taskId = new BukkitRunnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }.runTaskTimer(plugin, 1, 1).getTaskId();
+
+        return true;
+    }
+
+    /**
+     * Stop the driving task and forget all registered effects.
+     */
+    public void stop() {
+        if (taskId != -1) {
+            Bukkit.getScheduler().cancelTask(taskId);
+            taskId = -1;
+        }
+
+        for (ScheduledEffect entry : scheduled.values()) {
+            entry.cancelled = true;
+        }
+        scheduled.clear();
+        wheels.clear();
+        pendingAdditions.clear();
+
+        queues.clear();
+        rotation.clear();
+        queuedCount = 0;
+        newlyQueued = 0;
+    }
+
+    /**
+     * Register an effect to be run every {@link PersistentEffect#interval} ticks,
+     * starting within the next interval on whichever tick is least loaded.
+     * @param effect The effect to run
+     * @return True if the effect was registered, false if it already was.
+     */
+    public boolean register(PersistentEffect effect) {
+        if (scheduled.containsKey(effect)) {
+            return false;
+        }
+
+        int interval = Math.max(1, effect.interval);
+
+        ScheduledEffect entry = new ScheduledEffect(effect, interval, estimateCost(effect));
+        scheduled.put(effect, entry);
+
+        if (ticking) {
+            pendingAdditions.add(entry);
+        } else {
+            addToWheel(entry);
+        }
+
+        return true;
+    }
+
+    /**
+     * Stop running an effect.
+     * @param effect The effect to stop
+     * @return True if the effect was registered before this call
+     */
+    public boolean unregister(PersistentEffect effect) {
+        ScheduledEffect entry = scheduled.remove(effect);
+        if (entry == null) {
+            return false;
+        }
+
+        // Removed from its slot lazily, the next time that slot is visited
+        entry.cancelled = true;
+        if (entry.slot != -1) {
+            wheels.get(entry.interval).removeLoad(entry);
+        }
+        return true;
+    }
+
+    public boolean isRegistered(PersistentEffect effect) {
+        return scheduled.containsKey(effect);
+    }
+
+    public int getRegisteredCount() {
+        return scheduled.size();
+    }
+
+    public long getCurrentTick() {
+        return currentTick;
+    }
+
+    public TickBudget getBudget() {
+        return budget;
+    }
+
+    public LodController getLod() {
+        return lod;
+    }
+
+    /**
+     * @return The dispatcher collecting particles to send at the end of this tick
+     */
+    public ParticleDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * @return An index of where players are as of this tick.
+     */
+    public PlayerChunkIndex getPlayerIndex() {
+        return playerIndex;
+    }
+
+    /**
+     * @return The intervals effects are currently running at, in ascending order
+     */
+    public Set<Integer> getIntervals() {
+        return Collections.unmodifiableSet(wheels.keySet());
+    }
+
+    /**
+     * @param interval The interval to check
+     * @return The number of effects in each slot of that interval's wheel, or null if none run at that interval
+     */
+    @Nullable
+    public int[] getSlotCounts(int interval) {
+        TimingWheel wheel = wheels.get(interval);
+        return wheel == null ? null : wheel.counts.clone();
+    }
+
+    /**
+     * @param interval The interval to check
+     * @return The estimated nanoseconds each slot of that interval's wheel takes to run, or null if none run at that interval
+     */
+    @Nullable
+    public double[] getSlotCosts(int interval) {
+        TimingWheel wheel = wheels.get(interval);
+        return wheel == null ? null : wheel.costs.clone();
+    }
+
+    /**
+     * Estimate how long effects will take on each of the coming ticks, from every wheel's slot costs.
+     * @param ticks The number of ticks to estimate
+     * @return Estimated nanoseconds for each tick, starting with the next
+     */
+    public double[] getUpcomingCosts(int ticks) {
+        double[] costs = new double[ticks];
+        for (int i = 0; i < ticks; i++) {
+            costs[i] = getTickCost(currentTick + 1 + i);
+        }
+        return costs;
+    }
+
+    /**
+     * @return The number of ticks after which every wheel lines up again, or {@link #MAX_BALANCE_HORIZON} if that's sooner
+     */
+    public int getBalanceHorizon() {
+        long horizon = 1;
+        for (int interval : wheels.keySet()) {
+            long gcd = horizon;
+            long remainder = interval;
+            while (remainder != 0) {
+                long temp = gcd % remainder;
+                gcd = remainder;
+                remainder = temp;
+            }
+
+            horizon = horizon / gcd * interval;
+            if (horizon >= MAX_BALANCE_HORIZON) {
+                return MAX_BALANCE_HORIZON;
+            }
+        }
+        return (int) horizon;
+    }
+
+    /**
+     * Reassign every effect to a slot, costliest first. Effects keep their interval, but may run
+     * once early or late while they move.
+     */
+    public void rebalance() {
+        List<ScheduledEffect> entries = new ArrayList<>();
+        for (TimingWheel wheel : wheels.values()) {
+            wheel.clear(entries);
+        }
+
+        entries.sort((a, b) -> Double.compare(b.cost, a.cost));
+        for (ScheduledEffect entry : entries) {
+            addToWheel(entry);
+        }
+    }
+
+    private double estimateCost(PersistentEffect effect) {
+        EffectStats stats = effect.getStats();
+        long runs = stats.getRuns(currentTick);
+        if (runs > 0) {
+            return (double) stats.getTotalNanos(currentTick) / runs;
+        }
+
+        return effect.getEstimatedParticles() * nanosPerParticle;
+    }
+
+    private double getTickCost(long tick) {
+        double cost = 0;
+        for (TimingWheel wheel : wheels.values()) {
+            cost += wheel.costs[(int) (tick % wheel.interval)];
+        }
+        return cost;
+    }
+
+    private void addToWheel(ScheduledEffect entry) {
+        TimingWheel wheel = wheels.get(entry.interval);
+        if (wheel == null) {
+            wheel = new TimingWheel(entry.interval);
+            wheels.put(entry.interval, wheel);
+        }
+
+        entry.slot = pickSlot(wheel);
+        wheel.add(entry);
+    }
+
+    /**
+     * Find the slot where an effect would add least to the busiest tick it runs on,
+     * breaking ties by the slot with the least in it already.
+     */
+    private int pickSlot(TimingWheel wheel) {
+        int interval = wheel.interval;
+        if (interval == 1) {
+            return 0;
+        }
+
+        int horizon = getBalanceHorizon();
+
+        int bestSlot = 0;
+        double bestPeak = Double.MAX_VALUE;
+        for (int slot = 0; slot < interval; slot++) {
+            double peak = 0;
+            for (int tick = slot; tick < Math.max(horizon, interval); tick += interval) {
+                peak = Math.max(peak, getTickCost(tick));
+            }
+
+            if (peak < bestPeak || (peak == bestPeak && wheel.counts[slot] < wheel.counts[bestSlot])) {
+                bestPeak = peak;
+                bestSlot = slot;
+            }
+        }
+
+        return bestSlot;
+    }
+
+    private void updateCost(ScheduledEffect entry, int particles, long nanos) {
+        if (particles > 0) {
+            nanosPerParticle += ((double) nanos / particles - nanosPerParticle) * COST_SMOOTHING;
+        }
+
+        if (entry.cancelled || entry.slot == -1) {
+            return;
+        }
+
+        double change = (nanos - entry.cost) * COST_SMOOTHING;
+        entry.cost += change;
+        wheels.get(entry.interval).costs[entry.slot] += change;
+    }
+
+    /**
+     * Run one tick: every effect that's due, then send what they queued. Called by the task
+     * from {@link #start()}, or directly to drive effects without a server.
+     */
+    public void tick() {
+        currentTick++;
+        lod.onTick(System.nanoTime());
+        playerIndex.invalidate();
+
+        ticking = true;
+        for (TimingWheel wheel : wheels.values()) {
+            wheel.collect(currentTick);
+        }
+
+        runQueued();
+        flushDispatcher();
+        ticking = false;
+
+        for (ScheduledEffect entry : pendingAdditions) {
+            if (!entry.cancelled) {
+                addToWheel(entry);
+            }
+        }
+        pendingAdditions.clear();
+    }
+
+    private void flushDispatcher() {
+        int points = dispatcher.getQueuedPoints();
+
+        long start = System.nanoTime();
+        dispatcher.flush();
+        long elapsed = System.nanoTime() - start;
+
+        if (points > 0) {
+            flushNanosPerPoint += ((double) elapsed / points - flushNanosPerPoint) * COST_SMOOTHING;
+        }
+    }
+
+    private void enqueue(ScheduledEffect entry) {
+        if (entry.queued) {
+            // Still deferred from an earlier tick; don't run it twice, so this run is lost to the budget.
+            entry.effect.getStats().recordSkip(currentTick);
+            entry.effect.getParent().getStats().recordSkip(currentTick);
+            return;
+        }
+
+        EffectGroupInstance instance = entry.effect.getParent();
+        InstanceQueue queue = queues.get(instance);
+        if (queue == null) {
+            queue = new InstanceQueue(instance);
+            queues.put(instance, queue);
+            rotation.addLast(queue);
+        }
+
+        queue.entries.addLast(entry);
+        entry.queued = true;
+        entry.queuedTick = currentTick;
+        queuedCount++;
+        newlyQueued++;
+    }
+
+    private void runQueued() {
+        budget.startTick();
+
+        while (!rotation.isEmpty() && !budget.isExhausted()) {
+            InstanceQueue queue = rotation.pollFirst();
+            ScheduledEffect entry = queue.entries.pollFirst();
+            entry.queued = false;
+            queuedCount--;
+            if (entry.queuedTick == currentTick) {
+                newlyQueued--;
+            }
+
+            if (!entry.cancelled) {
+                int queuedBefore = dispatcher.getQueuedPoints();
+                long start = System.nanoTime();
+                int particles = run(entry);
+                long elapsed = System.nanoTime() - start;
+                // Batched points are only sent once every run is done, so charge each run its share up front
+                elapsed += (long) ((dispatcher.getQueuedPoints() - queuedBefore) * flushNanosPerPoint);
+                budget.spend(particles, elapsed);
+                updateCost(entry, particles, elapsed);
+            }
+
+            if (queue.entries.isEmpty()) {
+                queues.remove(queue.instance);
+            } else {
+                rotation.addLast(queue);
+            }
+        }
+
+        budget.endTick(currentTick, queuedCount, newlyQueued);
+        newlyQueued = 0;
+    }
+
+    private int run(ScheduledEffect entry) {
+        try {
+            return entry.effect.tick();
+        } catch (RuntimeException e) {
+            plugin.logger.warning("An effect in " + entry.effect.getParent().getId() + " threw an error and was stopped:");
+            e.printStackTrace();
+            unregister(entry.effect);
+            return 0;
+        }
+    }
+
+    private static class InstanceQueue {
+        private final EffectGroupInstance instance;
+        private final Deque<ScheduledEffect> entries = new ArrayDeque<>();
+
+        private InstanceQueue(EffectGroupInstance instance) {
+            this.instance = instance;
+        }
+    }
+
+    private static class ScheduledEffect {
+        private final PersistentEffect effect;
+        private final int interval;
+        private int slot = -1; // -1 until added to its wheel
+        private double cost; // Estimated nanoseconds per run
+
+        private boolean cancelled = false;
+        private boolean queued = false;
+        private long queuedTick; // The tick it was last queued on, while queued
+
+        private ScheduledEffect(PersistentEffect effect, int interval, double cost) {
+            this.effect = effect;
+            this.interval = interval;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * All effects sharing an interval, bucketed by the tick (mod interval) they run on.
+     */
+    private class TimingWheel {
+        private final int interval;
+        private final List<List<ScheduledEffect>> slots;
+        // Live effects, and the sum of their costs, in each slot
+        private final int[] counts;
+        private final double[] costs;
+
+        private TimingWheel(int interval) {
+            this.interval = interval;
+
+            slots = new ArrayList<>(interval);
+            for (int i = 0; i < interval; i++) {
+                slots.add(new ArrayList<>());
+            }
+
+            counts = new int[interval];
+            costs = new double[interval];
+        }
+
+        private void add(ScheduledEffect entry) {
+            slots.get(entry.slot).add(entry);
+            counts[entry.slot]++;
+            costs[entry.slot] += entry.cost;
+        }
+
+        private void removeLoad(ScheduledEffect entry) {
+            counts[entry.slot]--;
+            costs[entry.slot] = Math.max(0, costs[entry.slot] - entry.cost);
+        }
+
+        /**
+         * Empty every slot, moving the live entries into a list.
+         */
+        private void clear(List<ScheduledEffect> removed) {
+            for (List<ScheduledEffect> slot : slots) {
+                for (ScheduledEffect entry : slot) {
+                    if (!entry.cancelled) {
+                        entry.slot = -1;
+                        removed.add(entry);
+                    }
+                }
+                slot.clear();
+            }
+
+            Arrays.fill(counts, 0);
+            Arrays.fill(costs, 0);
+        }
+
+        private void collect(long tick) {
+            List<ScheduledEffect> slot = slots.get((int) (tick % interval));
+
+            // Compact out cancelled entries while queueing the live ones
+            int kept = 0;
+            int size = slot.size();
+            for (int i = 0; i < size; i++) {
+                ScheduledEffect entry = slot.get(i);
+                if (entry.cancelled) {
+                    continue;
+                }
+
+                enqueue(entry);
+
+                slot.set(kept, entry);
+                kept++;
+            }
+
+            slot.subList(kept, size).clear();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package wbs.particleeffects.scheduler;
+
+import wbs.particleeffects.instance.EffectGroupInstance;
+
+/**
+ * Decides how far effects should drop below full detail, from how long server ticks
+ * are taking and, for instances that track it, how far away their closest viewer is.
+ * <p>
+ * The result is a level from 0 (full detail) to 1 (as low as the group allows), which
+ * each group's {@link LodLimits} turns into fewer particles and longer intervals.
+ */
+public class LodController {
+
+    // Ideal time between ticks, at 20 TPS
+    private static final double IDEAL_MSPT = 50;
+    // How much of each new measurement goes into the average; roughly a one second window
+    private static final double SMOOTHING = 0.05;
+
+    private boolean enabled = false;
+    private double startMspt = 52;
+    private double fullMspt = 80;
+    private double nearDistance = 16;
+    private double farDistance = 64;
+
+    private long lastTickNanos = -1;
+    private double smoothedMspt = IDEAL_MSPT;
+    private double pressure = 0;
+
+    /**
+     * @param enabled Whether effects should lose detail at all
+     * @param startMspt Tick time, in milliseconds, above which effects start losing detail
+     * @param fullMspt Tick time at which effects are at their group's lowest detail
+     * @param nearDistance Viewer distance beyond which instances start losing detail
+     * @param farDistance Viewer distance at which instances are at their lowest detail
+     */
+    public void configure(boolean enabled, double startMspt, double fullMspt, double nearDistance, double farDistance) {
+        this.enabled = enabled;
+        this.startMspt = startMspt;
+        this.fullMspt = Math.max(startMspt, fullMspt);
+        this.nearDistance = nearDistance;
+        this.farDistance = Math.max(nearDistance, farDistance);
+
+        if (!enabled) {
+            pressure = 0;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Measure the time since the previous tick. Called by the scheduler at the start of every tick.
+     */
+    void onTick(long nanoTime) {
+        if (lastTickNanos != -1) {
+            double mspt = (nanoTime - lastTickNanos) / 1_000_000.0;
+            smoothedMspt += (mspt - smoothedMspt) * SMOOTHING;
+        }
+        lastTickNanos = nanoTime;
+
+        if (!enabled || fullMspt <= startMspt) {
+            pressure = 0;
+        } else {
+            pressure = clamp((smoothedMspt - startMspt) / (fullMspt - startMspt));
+        }
+    }
+
+    /**
+     * @param instance The instance about to play
+     * @return How far below full detail the instance's effects should be, from 0 to 1
+     */
+    public double getLevel(EffectGroupInstance instance) {
+        if (!enabled) {
+            return 0;
+        }
+
+        double level = pressure;
+
+        double distance = instance.getClosestViewerDistance();
+        if (distance > nearDistance) {
+            if (farDistance <= nearDistance) {
+                level = 1;
+            } else {
+                level = Math.max(level, clamp((distance - nearDistance) / (farDistance - nearDistance)));
+            }
+        }
+
+        return level;
+    }
+
+    /**
+     * @return The average time between recent ticks, in milliseconds
+     */
+    public double getSmoothedMspt() {
+        return smoothedMspt;
+    }
+
+    /**
+     * @return The detail level from tick time alone, from 0 to 1
+     */
+    public double getPressure() {
+        return pressure;
+    }
+
+    private static double clamp(double value) {
+        return Math.max(0, Math.min(1, value));
+    }
+}
@@ -0,0 +1,83 @@
+package wbs.particleeffects.scheduler;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.jetbrains.annotations.Nullable;
+import wbs.utils.util.plugin.WbsSettings;
+
+/**
+ * How far a group's effects may drop below full detail, read from its "lod" section.
+ */
+public class LodLimits {
+
+    public static final LodLimits DEFAULT = new LodLimits(true, 0.25, 4);
+
+    private final boolean enabled;
+    private final double minAmount;
+    private final double maxInterval;
+
+    public LodLimits(boolean enabled, double minAmount, double maxInterval) {
+        this.enabled = enabled;
+        this.minAmount = minAmount;
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * Read limits from a group's config, falling back to defaults for anything missing or invalid.
+     * @param section The group's "lod" section, or null if it doesn't have one
+     */
+    public static LodLimits fromConfig(@Nullable ConfigurationSection section, WbsSettings settings, String directory) {
+        if (section == null) {
+            return DEFAULT;
+        }
+
+        boolean enabled = section.getBoolean("enabled", DEFAULT.enabled);
+
+        double minAmount = section.getDouble("min-amount", DEFAULT.minAmount);
+        if (minAmount <= 0 || minAmount > 1) {
+            settings.logError("min-amount must be more than 0, and at most 1.", directory + "/min-amount");
+            minAmount = DEFAULT.minAmount;
+        }
+
+        double maxInterval = section.getDouble("max-interval", DEFAULT.maxInterval);
+        if (maxInterval < 1) {
+            settings.logError("max-interval must be at least 1.", directory + "/max-interval");
+            maxInterval = DEFAULT.maxInterval;
+        }
+
+        return new LodLimits(enabled, minAmount, maxInterval);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param level A level from {@link LodController#getLevel(wbs.particleeffects.instance.EffectGroupInstance)}
+     * @return The fraction of particles to keep, from min-amount to 1
+     */
+    public double getAmountScale(double level) {
+        if (!enabled) {
+            return 1;
+        }
+        return 1 - level * (1 - minAmount);
+    }
+
+    /**
+     * @param level A level from {@link LodController#getLevel(wbs.particleeffects.instance.EffectGroupInstance)}
+     * @return How many times longer the interval should be, from 1 to max-interval
+     */
+    public double getIntervalScale(double level) {
+        if (!enabled) {
+            return 1;
+        }
+        return 1 + level * (maxInterval - 1);
+    }
+
+    public double getMinAmount() {
+        return minAmount;
+    }
+
+    public double getMaxInterval() {
+        return maxInterval;
+    }
+}
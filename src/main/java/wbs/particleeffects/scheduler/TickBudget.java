@@ -0,0 +1,98 @@
+package wbs.particleeffects.scheduler;
+
+/**
+ * Tracks how much work effects have done in the current tick against the
+ * limits set in config.yml, and remembers when those limits were hit.
+ */
+public class TickBudget {
+
+    private int maxParticles = 0; // 0 = unlimited
+    private long maxNanos = 0; // 0 = unlimited
+
+    private int particlesThisTick;
+    private long nanosThisTick;
+
+    // For reporting
+    private long throttledTicks = 0;
+    private long deferredRuns = 0;
+    private long lastThrottledTick = -1;
+    private int backlog = 0;
+
+    /**
+     * @param maxParticles The most particles to send per tick, or 0 for no limit
+     * @param maxMillis The most time to spend per tick in milliseconds, or 0 for no limit
+     */
+    public void setLimits(int maxParticles, double maxMillis) {
+        this.maxParticles = Math.max(0, maxParticles);
+        this.maxNanos = Math.max(0, (long) (maxMillis * 1000000));
+    }
+
+    public boolean isLimited() {
+        return maxParticles > 0 || maxNanos > 0;
+    }
+
+    void startTick() {
+        particlesThisTick = 0;
+        nanosThisTick = 0;
+    }
+
+    boolean isExhausted() {
+        return (maxParticles > 0 && particlesThisTick >= maxParticles)
+                || (maxNanos > 0 && nanosThisTick >= maxNanos);
+    }
+
+    void spend(int particles, long nanos) {
+        particlesThisTick += particles;
+        nanosThisTick += nanos;
+    }
+
+    /**
+     * @param tick The tick that's ending
+     * @param remaining The runs still waiting for budget
+     * @param newlyDeferred How many of those were queued this tick, so each run is only counted once
+     */
+    void endTick(long tick, int remaining, int newlyDeferred) {
+        backlog = remaining;
+        deferredRuns += newlyDeferred;
+        if (remaining > 0) {
+            throttledTicks++;
+            lastThrottledTick = tick;
+        }
+    }
+
+    public void resetStats() {
+        throttledTicks = 0;
+        deferredRuns = 0;
+        lastThrottledTick = -1;
+    }
+
+    public int getMaxParticles() {
+        return maxParticles;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos / 1000000.0;
+    }
+
+    public long getThrottledTicks() {
+        return throttledTicks;
+    }
+
+    public long getDeferredRuns() {
+        return deferredRuns;
+    }
+
+    /**
+     * @return The scheduler tick budgeting last deferred effects on, or -1 if it never has.
+     */
+    public long getLastThrottledTick() {
+        return lastThrottledTick;
+    }
+
+    /**
+     * @return The number of effect runs left waiting at the end of the last tick
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+}
@@ -0,0 +1,81 @@
+package wbs.particleeffects.session;
+
+import org.bukkit.Location;
+import wbs.particleeffects.instance.AmbientEffectGroupInstance;
+import wbs.particleeffects.render.HighlightService;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Everything the plugin keeps for one online player. Owned by {@link PlayerSessions},
+ * and discarded when the player leaves, so nothing here should outlive their session.
+ */
+public class PlayerData {
+
+    private final UUID uuid;
+
+    public AmbientEffectGroupInstance selectingFor;
+
+    public Location pos1;
+
+    // Instances whose outline this player is shown, drawn by the HighlightService
+    private final Set<AmbientEffectGroupInstance> highlights = new HashSet<>();
+
+    PlayerData(UUID uuid) {
+        this.uuid = uuid;
+    }
+
+    public UUID getUniqueId() {
+        return uuid;
+    }
+
+    /**
+     * @param instance The instance to check
+     * @return True if this player is being shown the instance's outline
+     */
+    public boolean isHighlighting(AmbientEffectGroupInstance instance) {
+        return highlights.contains(instance);
+    }
+
+    /**
+     * Start showing an instance's outline. Use {@link HighlightService#toggle} to make sure it's drawn.
+     * @param instance The instance to highlight
+     * @return True if it wasn't already highlighted
+     */
+    public boolean addHighlight(AmbientEffectGroupInstance instance) {
+        return highlights.add(instance);
+    }
+
+    /**
+     * Stop showing an instance's outline.
+     * @param instance The instance to stop highlighting
+     * @return True if it was highlighted
+     */
+    public boolean removeHighlight(AmbientEffectGroupInstance instance) {
+        return highlights.remove(instance);
+    }
+
+    /**
+     * @return An unmodifiable view of the instances this player has highlighted
+     */
+    public Set<AmbientEffectGroupInstance> getHighlights() {
+        return Collections.unmodifiableSet(highlights);
+    }
+
+    public int getHighlightCount() {
+        return highlights.size();
+    }
+
+    /**
+     * Stop everything running for this player and drop what they had selected.
+     */
+    void close() {
+        highlights.clear();
+
+        selectingFor = null;
+        pos1 = null;
+    }
+}
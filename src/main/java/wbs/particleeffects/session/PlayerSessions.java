@@ -0,0 +1,101 @@
+package wbs.particleeffects.session;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.jetbrains.annotations.Nullable;
+import wbs.particleeffects.instance.AmbientEffectGroupInstance;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Per-player state, keyed by UUID so no {@link Player} is kept after they leave.
+ * Sessions are made when first needed and closed when the player quits, which also
+ * stops anything shown to them, such as highlights.
+ */
+public class PlayerSessions implements Listener {
+
+    private final Map<UUID, PlayerData> sessions = new HashMap<>();
+
+    /**
+     * Get a player's session, starting one if they don't have one yet.
+     * @param player The player, who should be online
+     * @return Their session
+     */
+    public PlayerData get(Player player) {
+        PlayerData data = sessions.get(player.getUniqueId());
+        if (data == null) {
+            data = new PlayerData(player.getUniqueId());
+            sessions.put(player.getUniqueId(), data);
+        }
+        return data;
+    }
+
+    /**
+     * @param player The player to check
+     * @return Their session, or null if nothing has needed one yet
+     */
+    @Nullable
+    public PlayerData getIfPresent(Player player) {
+        return sessions.get(player.getUniqueId());
+    }
+
+    /**
+     * @return An unmodifiable view of every open session
+     */
+    public Collection<PlayerData> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    /**
+     * Stop every player's highlight of an instance, such as when it's disabled.
+     * @param instance The instance to stop highlighting
+     */
+    public void removeHighlights(AmbientEffectGroupInstance instance) {
+        for (PlayerData data : sessions.values()) {
+            data.removeHighlight(instance);
+        }
+    }
+
+    /**
+     * @return The number of players with a session
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * @return The number of highlights running across every session
+     */
+    public int getHighlightCount() {
+        int count = 0;
+        for (PlayerData data : sessions.values()) {
+            count += data.getHighlightCount();
+        }
+        return count;
+    }
+
+    /**
+     * Close every session, stopping anything shown to any player.
+     */
+    public void clear() {
+        for (PlayerData data : sessions.values()) {
+            data.close();
+        }
+        sessions.clear();
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        PlayerData data = sessions.remove(event.getPlayer().getUniqueId());
+        if (data != null) {
+            data.close();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package wbs.particleeffects.storage;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Writes {@link InstanceEdit}s to group files on a background thread.
+ * <p>
+ * Edits to a file that's already waiting to be written are merged into that write,
+ * so repeated saves only read and write the file once. Files are written to a
+ * temporary file first and moved into place, so a crash mid-write never leaves
+ * a half-written config.
+ */
+public class AsyncConfigWriter {
+
+    private final Logger logger;
+    private final ExecutorService executor;
+
+    // Guarded by itself
+    private final Map<File, PendingWrite> pending = new HashMap<>();
+
+    @Nullable
+    private volatile BiConsumer<File, byte[]> writeListener;
+    @Nullable
+    private volatile BiConsumer<File, List<InstanceEdit>> failureListener;
+
+    public AsyncConfigWriter(Logger logger) {
+        this.logger = logger;
+
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WbsParticleEffects-Save");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Set a callback to run on the save thread after each file is written.
+     * @param writeListener Accepts the file and the exact contents written to it
+     */
+    public void setWriteListener(@Nullable BiConsumer<File, byte[]> writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    /**
+     * Set a callback to run on the save thread when a file couldn't be written.
+     * @param failureListener Accepts the file and the edits that weren't saved to it
+     */
+    public void setFailureListener(@Nullable BiConsumer<File, List<InstanceEdit>> failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    /**
+     * Queue an edit to be written to a file.
+     * @param file The group file to edit
+     * @param edit The changes to make
+     */
+    public void submit(File file, InstanceEdit edit) {
+        PendingWrite write;
+        synchronized (pending) {
+            write = pending.get(file);
+            if (write != null) {
+                write.edits.add(edit);
+                return;
+            }
+
+            write = new PendingWrite(file);
+            write.edits.add(edit);
+            pending.put(file, write);
+        }
+
+        final PendingWrite toRun = write;
+        executor.execute(() -> run(toRun));
+    }
+
+    /**
+     * Run a task on the save thread, after every edit submitted so far.
+     * @param task The task to run
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Block until every edit submitted so far has been written.
+     */
+    public void flush() {
+        try {
+            executor.submit(() -> {}).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Finish writing everything queued, then stop the background thread.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.warning("Timed out waiting for effect files to save.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(PendingWrite write) {
+        List<InstanceEdit> edits;
+        synchronized (pending) {
+            // Anything submitted from here on goes into a new write
+            pending.remove(write.file);
+            edits = new ArrayList<>(write.edits);
+        }
+
+        YamlConfiguration config = new YamlConfiguration();
+        try {
+            config.load(write.file);
+        } catch (IOException | InvalidConfigurationException e) {
+            logger.warning("Failed to load " + write.file.getName() + " for saving; changes to it were not saved.");
+            e.printStackTrace();
+            notifyFailure(write.file, edits);
+            return;
+        }
+
+        ConfigurationSection instancesSection = config.getConfigurationSection("instances");
+        if (instancesSection == null) {
+            instancesSection = config.createSection("instances");
+        }
+
+        for (InstanceEdit edit : edits) {
+            edit.applyTo(instancesSection);
+        }
+
+        byte[] contents = config.saveToString().getBytes(StandardCharsets.UTF_8);
+        try {
+            writeAtomically(write.file, contents);
+
+            BiConsumer<File, byte[]> listener = writeListener;
+            if (listener != null) {
+                listener.accept(write.file, contents);
+            }
+        } catch (IOException e) {
+            logger.warning("Failed to save " + write.file.getName() + ".");
+            e.printStackTrace();
+            notifyFailure(write.file, edits);
+        }
+    }
+
+    private void notifyFailure(File file, List<InstanceEdit> edits) {
+        BiConsumer<File, List<InstanceEdit>> listener = failureListener;
+        if (listener != null) {
+            listener.accept(file, edits);
+        }
+    }
+
+    private void writeAtomically(File file, byte[] contents) throws IOException {
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+
+        Files.write(temp, contents);
+
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static class PendingWrite {
+        private final File file;
+        private final List<InstanceEdit> edits = new ArrayList<>();
+
+        private PendingWrite(File file) {
+            this.file = file;
+        }
+    }
+}
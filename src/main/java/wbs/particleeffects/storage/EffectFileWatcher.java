@@ -0,0 +1,93 @@
+package wbs.particleeffects.storage;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watches the effects directory and runs a task on the main thread shortly after
+ * anything in it changes. Bursts of changes, such as an editor saving several
+ * files, are collapsed into a single run.
+ */
+public class EffectFileWatcher {
+
+    // Ticks to wait after a change before running, to let writes finish
+    private static final long DELAY = 20;
+
+    private final Plugin plugin;
+    private final File directory;
+    private final Runnable onChange;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private WatchService watchService;
+    private Thread thread;
+
+    public EffectFileWatcher(Plugin plugin, File directory, Runnable onChange) {
+        this.plugin = plugin;
+        this.directory = directory;
+        this.onChange = onChange;
+    }
+
+    public void start() throws IOException {
+        if (thread != null) return;
+
+        watchService = FileSystems.getDefault().newWatchService();
+        directory.toPath().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+
+        thread = new Thread(this::watch, "WbsParticleEffects-Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        if (thread == null) return;
+
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        thread.interrupt();
+        thread = null;
+        watchService = null;
+    }
+
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    private void watch() {
+        WatchService service = watchService;
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            key.pollEvents();
+
+            if (scheduled.compareAndSet(false, true)) {
+                Bukkit.getScheduler().runTaskLater(plugin, () -> {
+                    scheduled.set(false);
+                    onChange.run();
+                }, DELAY);
+            }
+
+            if (!key.reset()) {
+                // Directory was deleted
+                return;
+            }
+        }
+    }
+}
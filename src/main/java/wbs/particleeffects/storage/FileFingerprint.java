@@ -0,0 +1,62 @@
+package wbs.particleeffects.storage;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Identifies the contents of a file as it was last loaded or written.
+ */
+public class FileFingerprint {
+
+    private final long lastModified;
+    private final long size;
+    private final String hash;
+
+    public FileFingerprint(long lastModified, long size, String hash) {
+        this.lastModified = lastModified;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    public FileFingerprint(File file, byte[] contents) {
+        this(file.lastModified(), contents.length, hash(contents));
+    }
+
+    /**
+     * A cheap check that skips reading the file.
+     * @return True if the file's modified time and size are unchanged, in which case
+     * its contents are assumed to be unchanged too
+     */
+    public boolean matchesMetadata(File file) {
+        return file.lastModified() == lastModified && file.length() == size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public static String hash(byte[] contents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(contents)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,172 @@
+package wbs.particleeffects.storage;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads and parses effect group files in parallel.
+ * <p>
+ * Parsing touches nothing but the file itself, so it's safe off the main thread.
+ * Building groups and instances from the result must still happen on the main
+ * thread, in the order returned.
+ */
+public class GroupFileParser {
+
+    /**
+     * Parse all given files on a fork-join pool.
+     * @param files The files to parse
+     * @return One result per file, sorted by file name, regardless of which finished first
+     */
+    public static List<ParsedGroupFile> parseAll(Collection<File> files) {
+        return parseAll(files, Collections.emptyMap());
+    }
+
+    /**
+     * Parse all given files on a fork-join pool, reading them from a snapshot instead
+     * of YAML where the snapshot is up to date.
+     * @param files The files to parse
+     * @param snapshot Snapshot entries by file name, from {@link SnapshotCache#read()}
+     * @return One result per file, sorted by file name, regardless of which finished first
+     */
+    public static List<ParsedGroupFile> parseAll(Collection<File> files, Map<String, SnapshotCache.Entry> snapshot) {
+        List<File> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparing(File::getName));
+
+        List<Callable<ParsedGroupFile>> tasks = new ArrayList<>(sorted.size());
+        for (File file : sorted) {
+            tasks.add(() -> parse(file, snapshot.get(file.getName())));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<ParsedGroupFile> results = new ArrayList<>(tasks.size());
+            for (Future<ParsedGroupFile> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        } catch (ExecutionException e) {
+            // parse() catches everything it expects, so this is a bug
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static ParsedGroupFile parse(File file, @Nullable SnapshotCache.Entry snapshotEntry) {
+        ParsedGroupFile parsed = new ParsedGroupFile(file);
+
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            parsed.addError("Failed to read file: " + e.getMessage());
+            return parsed;
+        }
+        parsed.fingerprint = new FileFingerprint(file, bytes);
+
+        YamlConfiguration config = null;
+        if (snapshotEntry != null && snapshotEntry.getHash().equals(parsed.fingerprint.getHash())) {
+            try {
+                config = SnapshotCache.decode(snapshotEntry.getPayload());
+                parsed.fromSnapshot = true;
+            } catch (IOException e) {
+                // Fall back to YAML below
+            }
+        }
+
+        if (config == null) {
+            config = new YamlConfiguration();
+            try {
+                config.loadFromString(new String(bytes, StandardCharsets.UTF_8));
+            } catch (InvalidConfigurationException e) {
+                parsed.addError("Invalid YAML: " + e.getMessage());
+                return parsed;
+            }
+        }
+
+        boolean valid = true;
+        if (config.getConfigurationSection("instances") == null) {
+            parsed.addError("Section \"instances\" is missing or invalid.");
+            valid = false;
+        }
+        if (config.getConfigurationSection("effects") == null) {
+            parsed.addError("Section \"effects\" is missing or invalid.");
+            valid = false;
+        }
+
+        if (valid) {
+            parsed.config = config;
+        }
+        return parsed;
+    }
+
+    public static class ParsedGroupFile {
+        private final File file;
+        private final List<String> errors = new LinkedList<>();
+        @Nullable
+        private YamlConfiguration config;
+        @Nullable
+        private FileFingerprint fingerprint;
+        private boolean fromSnapshot = false;
+
+        private ParsedGroupFile(File file) {
+            this.file = file;
+        }
+
+        private void addError(String error) {
+            errors.add(error);
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return The group id this file defines, taken from the file name
+         */
+        public String getId() {
+            return file.getName().split("\\.")[0];
+        }
+
+        /**
+         * @return Errors found while parsing, in the order they were found
+         */
+        public List<String> getErrors() {
+            return Collections.unmodifiableList(errors);
+        }
+
+        /**
+         * @return The parsed config, or null if the file couldn't be read or was invalid
+         */
+        @Nullable
+        public YamlConfiguration getConfig() {
+            return config;
+        }
+
+        /**
+         * @return The fingerprint of the contents that were parsed, or null if the file couldn't be read
+         */
+        @Nullable
+        public FileFingerprint getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return True if the config was read from a snapshot rather than parsed from YAML
+         */
+        public boolean isFromSnapshot() {
+            return fromSnapshot;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package wbs.particleeffects.storage;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.MemoryConfiguration;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of changes to the instances section of one group file, taken on the
+ * main thread so it can be written out on another.
+ */
+public class InstanceEdit {
+
+    private final List<String> removed = new LinkedList<>();
+    private final MemoryConfiguration written = new MemoryConfiguration();
+    private int writtenCount = 0;
+
+    /**
+     * @return A detached section for instances to write their current state into
+     */
+    public ConfigurationSection getInstancesSection() {
+        return written;
+    }
+
+    /**
+     * Note that an instance was written to {@link #getInstancesSection()}.
+     */
+    public void countWritten() {
+        writtenCount++;
+    }
+
+    /**
+     * Remove an instance from the file. Removals are applied before writes.
+     * @param instanceId The id of the instance to remove
+     */
+    public void remove(String instanceId) {
+        removed.add(instanceId);
+    }
+
+    public int getWrittenCount() {
+        return writtenCount;
+    }
+
+    public int getRemovedCount() {
+        return removed.size();
+    }
+
+    /**
+     * @return The ids of instances this edit removes
+     */
+    public List<String> getRemoved() {
+        return Collections.unmodifiableList(removed);
+    }
+
+    /**
+     * Apply this edit. Only values that were written are changed, so keys instances don't
+     * save (such as locked) are left as they were.
+     * @param instancesSection The instances section of the freshly loaded file
+     */
+    void applyTo(ConfigurationSection instancesSection) {
+        for (String instanceId : removed) {
+            instancesSection.set(instanceId, null);
+        }
+
+        for (Map.Entry<String, Object> entry : written.getValues(true).entrySet()) {
+            if (!(entry.getValue() instanceof ConfigurationSection)) {
+                instancesSection.set(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
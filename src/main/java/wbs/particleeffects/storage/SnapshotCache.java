@@ -0,0 +1,312 @@
+package wbs.particleeffects.storage;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import wbs.particleeffects.storage.GroupFileParser.ParsedGroupFile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A compiled copy of every effect file's config, keyed by the hash of the file it came from.
+ * <p>
+ * Reading a file's tree back from here skips SnakeYAML entirely, which is most of the cost of
+ * loading. Entries are only used when the source file's hash still matches, so an edited file
+ * is always parsed from YAML.
+ */
+public class SnapshotCache {
+
+    private static final int MAGIC = 0x57425045; // WBPE
+    // Increase whenever the format changes, so old snapshots are ignored
+    private static final int VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte BOOLEAN = 6;
+    private static final byte LIST = 7;
+    private static final byte SECTION = 8;
+
+    private final File file;
+    private final Logger logger;
+
+    public SnapshotCache(File file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * Read the snapshot without decoding any entries.
+     * @return Entries by file name, or an empty map if there's no usable snapshot
+     */
+    public Map<String, Entry> read() {
+        Map<String, Entry> entries = new HashMap<>();
+        if (!file.exists()) {
+            return entries;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return entries;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String fileName = readString(in);
+                String hash = readString(in);
+
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+
+                entries.put(fileName, new Entry(hash, payload));
+            }
+        } catch (IOException e) {
+            logger.warning("Effect snapshot was unreadable; loading from YAML instead.");
+            entries.clear();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Write a new snapshot of the given files, replacing the old one. Files with values that
+     * can't be stored are left out, and will be parsed from YAML next time.
+     * Safe to call off the main thread, as long as the configs aren't being changed.
+     */
+    public void write(List<ParsedGroupFile> files) {
+        List<String> names = new ArrayList<>();
+        List<String> hashes = new ArrayList<>();
+        List<byte[]> payloads = new ArrayList<>();
+
+        for (ParsedGroupFile parsed : files) {
+            if (parsed.getConfig() == null || parsed.getFingerprint() == null) {
+                continue;
+            }
+
+            byte[] payload = encode(parsed.getConfig());
+            if (payload != null) {
+                names.add(parsed.getFile().getName());
+                hashes.add(parsed.getFingerprint().getHash());
+                payloads.add(payload);
+            }
+        }
+
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+
+            Path target = file.toPath();
+            Path temp = target.resolveSibling(file.getName() + ".tmp");
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(names.size());
+                for (int i = 0; i < names.size(); i++) {
+                    writeString(out, names.get(i));
+                    writeString(out, hashes.get(i));
+                    out.writeInt(payloads.get(i).length);
+                    out.write(payloads.get(i));
+                }
+            }
+
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.warning("Failed to write effect snapshot.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Turn a config into a compact binary tree.
+     * @return The encoded config, or null if it contains a value that can't be stored
+     */
+    static byte[] encode(ConfigurationSection config) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            if (!writeSection(out, config)) {
+                return null;
+            }
+        } catch (IOException e) {
+            // Can't happen when writing to memory
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Rebuild a config from {@link #encode(ConfigurationSection)}.
+     */
+    static YamlConfiguration decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        if (in.readByte() != SECTION) {
+            throw new IOException("Snapshot entry is not a section");
+        }
+
+        YamlConfiguration config = new YamlConfiguration();
+        readSection(in, config);
+        return config;
+    }
+
+    private static boolean writeSection(DataOutputStream out, ConfigurationSection section) throws IOException {
+        Set<String> keys = section.getKeys(false);
+
+        out.writeByte(SECTION);
+        out.writeInt(keys.size());
+        for (String key : keys) {
+            writeString(out, key);
+            if (!writeValue(out, section.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof ConfigurationSection) {
+            return writeSection(out, (ConfigurationSection) value);
+        } else if (value instanceof Map) {
+            // Only appears inside lists
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(SECTION);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(out, String.valueOf(entry.getKey()));
+                if (!writeValue(out, entry.getValue())) {
+                    return false;
+                }
+            }
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                if (!writeValue(out, element)) {
+                    return false;
+                }
+            }
+        } else {
+            // Dates, big numbers, serialized objects and so on are left to YAML
+            return false;
+        }
+        return true;
+    }
+
+    private static void readSection(DataInputStream in, ConfigurationSection section) throws IOException {
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+
+            byte type = in.readByte();
+            if (type == SECTION) {
+                readSection(in, section.createSection(key));
+            } else {
+                section.set(key, readValue(in, type));
+            }
+        }
+    }
+
+    private static Object readValue(DataInputStream in, byte type) throws IOException {
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case BOOLEAN:
+                return in.readBoolean();
+            case LIST:
+                int size = in.readInt();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in, in.readByte()));
+                }
+                return list;
+            case SECTION:
+                // Maps inside lists stay as maps, as they do when loaded from YAML
+                int mapSize = in.readInt();
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < mapSize; i++) {
+                    String key = readString(in);
+                    map.put(key, readValue(in, in.readByte()));
+                }
+                return map;
+            default:
+                throw new IOException("Unknown snapshot value type " + type);
+        }
+    }
+
+    // DataOutputStream#writeUTF is limited to 64KB, which long strings could exceed
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One file's compiled config, not yet decoded.
+     */
+    public static class Entry {
+        private final String hash;
+        private final byte[] payload;
+
+        private Entry(String hash, byte[] payload) {
+            this.hash = hash;
+            this.payload = payload;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        byte[] getPayload() {
+            return payload;
+        }
+    }
+}